@@ -0,0 +1,88 @@
+package redempt.redlib.blockdata;
+
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for looking up and modifying DataBlocks in loaded chunks
+ *
+ * @author Redempt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BlockDataManagerBenchmark {
+
+    private static final int BLOCKS = 1024;
+
+    private Path file;
+    private BlockDataManager manager;
+    private Block[] present = new Block[BLOCKS];
+    private Block[] absent = new Block[BLOCKS];
+    private DataBlock[] dataBlocks = new DataBlock[BLOCKS];
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = Files.createTempFile("redlib-benchmark", ".db");
+        manager = BlockDataManager.createSQLite(StandIns.plugin(), file, false, false);
+        World world = StandIns.world("world");
+        // 64 DataBlocks in each of a 4x4 area of chunks
+        for (int i = 0; i < BLOCKS; i++) {
+            int x = ((i >> 6) & 3) * 16 + (i & 15);
+            int z = (i >> 8) * 16 + ((i >> 4) & 3);
+            present[i] = StandIns.block(world, x, 64, z);
+            absent[i] = StandIns.block(world, x, 65, z);
+            dataBlocks[i] = manager.getDataBlock(present[i]);
+            dataBlocks[i].set("owner", "benchmark");
+            dataBlocks[i].set("count", i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        manager.getBackend().close().join();
+        Files.deleteIfExists(file);
+    }
+
+    private int next() {
+        return index = (index + 1) & (BLOCKS - 1);
+    }
+
+    @Benchmark
+    public DataBlock getDataBlockHit() {
+        return manager.getDataBlock(present[next()], false);
+    }
+
+    @Benchmark
+    public DataBlock getDataBlockMiss() {
+        return manager.getDataBlock(absent[next()], false);
+    }
+
+    @Benchmark
+    public void set() {
+        int i = next();
+        dataBlocks[i].set("count", i);
+    }
+
+}
@@ -0,0 +1,64 @@
+package redempt.redlib.blockdata;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import redempt.redlib.json.JSONMap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for encoding and decoding the data stored for a chunk
+ *
+ * @author Redempt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ChunkCodecBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int blocks;
+
+    private ChunkPosition pos = new ChunkPosition(0, 0, "world");
+    private List<DataBlock> dataBlocks;
+    private byte[] encoded;
+
+    @Setup
+    public void setup() {
+        dataBlocks = new ArrayList<>(blocks);
+        for (int i = 0; i < blocks; i++) {
+            JSONMap data = new JSONMap();
+            data.put("owner", "benchmark");
+            data.put("count", i);
+            data.put("active", i % 2 == 0);
+            dataBlocks.add(new DataBlock(data, new BlockPosition(i & 15, i >> 8, (i >> 4) & 15), "world", null));
+        }
+        encoded = ChunkDataCodec.encode(dataBlocks);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return ChunkDataCodec.encode(dataBlocks);
+    }
+
+    @Benchmark
+    public void decode(Blackhole blackhole) {
+        ChunkDataCodec.decode(pos, encoded, (bPos, data) -> blackhole.consume(data));
+    }
+
+}
@@ -0,0 +1,96 @@
+package redempt.redlib.blockdata;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import redempt.redlib.blockdata.backend.BlockDataBackend;
+import redempt.redlib.json.JSONMap;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the throughput of saving and loading chunks with the SQLite backend, using a temporary
+ * database file
+ *
+ * @author Redempt
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SQLiteBackendBenchmark {
+
+    private static final int CHUNKS = 1024;
+    private static final int BATCH = 64;
+
+    private Path file;
+    private BlockDataBackend backend;
+    private ChunkPosition[] positions = new ChunkPosition[CHUNKS];
+    private byte[] data;
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        file = Files.createTempFile("redlib-benchmark", ".db");
+        backend = BlockDataBackend.sqlite(file);
+        List<DataBlock> blocks = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            JSONMap map = new JSONMap();
+            map.put("owner", "benchmark");
+            map.put("count", i);
+            blocks.add(new DataBlock(map, new BlockPosition(i & 15, 64, i >> 4), "world", null));
+        }
+        data = ChunkDataCodec.encode(blocks);
+        Map<ChunkPosition, byte[]> batch = new LinkedHashMap<>();
+        for (int i = 0; i < CHUNKS; i++) {
+            positions[i] = new ChunkPosition(i & 31, i >> 5, "world");
+            batch.put(positions[i], data);
+        }
+        backend.saveBatch(batch).join();
+        backend.saveAll().join();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        backend.close().join();
+        Files.deleteIfExists(file);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void saveBatch() {
+        Map<ChunkPosition, byte[]> batch = new LinkedHashMap<>();
+        for (int i = 0; i < BATCH; i++) {
+            index = (index + 1) & (CHUNKS - 1);
+            batch.put(positions[index], data);
+        }
+        backend.saveBatch(batch).join();
+        backend.saveAll().join();
+    }
+
+    @Benchmark
+    public byte[] load() {
+        index = (index + 1) & (CHUNKS - 1);
+        return backend.load(positions[index]).join();
+    }
+
+}
@@ -0,0 +1,131 @@
+package redempt.redlib.blockdata;
+
+import org.bukkit.Bukkit;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.block.Block;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginManager;
+import org.bukkit.scheduler.BukkitScheduler;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.logging.Logger;
+
+/**
+ * Lightweight stand-ins for the Bukkit objects the blockdata subsystem touches, so it can be benchmarked
+ * without a server. Methods which are not implemented return null, zero, or false.
+ *
+ * @author Redempt
+ */
+public class StandIns {
+
+    private static Plugin plugin;
+
+    /**
+     * Installs a stand-in server if none is running and returns a stand-in plugin to own BlockDataManagers
+     *
+     * @return The plugin
+     */
+    public static synchronized Plugin plugin() {
+        if (plugin != null) {
+            return plugin;
+        }
+        if (Bukkit.getServer() == null) {
+            Map<String, Function<Object[], Object>> server = new HashMap<>();
+            Logger logger = Logger.getLogger("Benchmark");
+            PluginManager pluginManager = proxy(PluginManager.class, new HashMap<>());
+            BukkitScheduler scheduler = proxy(BukkitScheduler.class, new HashMap<>());
+            server.put("getLogger", args -> logger);
+            server.put("getPluginManager", args -> pluginManager);
+            server.put("getScheduler", args -> scheduler);
+            server.put("isPrimaryThread", args -> true);
+            Bukkit.setServer(proxy(Server.class, server));
+        }
+        Map<String, Function<Object[], Object>> methods = new HashMap<>();
+        methods.put("getName", args -> "Benchmark");
+        methods.put("isEnabled", args -> true);
+        plugin = proxy(Plugin.class, methods);
+        return plugin;
+    }
+
+    /**
+     * Creates a stand-in world
+     *
+     * @param name The name of the world
+     * @return The world
+     */
+    public static World world(String name) {
+        World[] world = new World[1];
+        Map<String, Function<Object[], Object>> methods = new HashMap<>();
+        methods.put("getName", args -> name);
+        methods.put("getBlockAt", args -> block(world[0], (int) args[0], (int) args[1], (int) args[2]));
+        world[0] = proxy(World.class, methods);
+        return world[0];
+    }
+
+    /**
+     * Creates a stand-in block
+     *
+     * @param world The world the block is in
+     * @param x     The X coordinate of the block
+     * @param y     The Y coordinate of the block
+     * @param z     The Z coordinate of the block
+     * @return The block
+     */
+    public static Block block(World world, int x, int y, int z) {
+        Map<String, Function<Object[], Object>> methods = new HashMap<>();
+        methods.put("getWorld", args -> world);
+        methods.put("getX", args -> x);
+        methods.put("getY", args -> y);
+        methods.put("getZ", args -> z);
+        return proxy(Block.class, methods);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> clazz, Map<String, Function<Object[], Object>> methods) {
+        return (T) Proxy.newProxyInstance(StandIns.class.getClassLoader(), new Class<?>[] {clazz}, (proxy, method, args) -> {
+            Function<Object[], Object> impl = methods.get(method.getName());
+            if (impl != null) {
+                return impl.apply(args);
+            }
+            switch (method.getName()) {
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "equals":
+                    return proxy == args[0];
+                case "toString":
+                    return clazz.getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(proxy));
+            }
+            Class<?> type = method.getReturnType();
+            if (type == boolean.class) {
+                return false;
+            }
+            if (type == void.class || !type.isPrimitive()) {
+                return null;
+            }
+            if (type == long.class) {
+                return 0L;
+            }
+            if (type == double.class) {
+                return 0D;
+            }
+            if (type == float.class) {
+                return 0F;
+            }
+            if (type == char.class) {
+                return (char) 0;
+            }
+            if (type == byte.class) {
+                return (byte) 0;
+            }
+            if (type == short.class) {
+                return (short) 0;
+            }
+            return 0;
+        });
+    }
+
+}
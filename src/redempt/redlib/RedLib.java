@@ -8,6 +8,7 @@ import redempt.redlib.commandmanager.ArgType;
 import redempt.redlib.commandmanager.CommandParser;
 import redempt.redlib.commandmanager.Messages;
 import redempt.redlib.config.ConfigManager;
+import redempt.redlib.dev.BlockDataCommands;
 import redempt.redlib.dev.ChainCommand;
 import redempt.redlib.dev.StructureTool;
 import redempt.redlib.dev.profiler.ProfilerCommands;
@@ -73,7 +74,7 @@ public class RedLib extends JavaPlugin {
             new CommandParser(this.getResource("command.rdcml"))
                     .setArgTypes(ArgType.of("material", Material.class), chain.getArgType())
                     .parse()
-                    .register("redlib", new ProfilerCommands(), StructureTool.enable(), chain);
+                    .register("redlib", new ProfilerCommands(), StructureTool.enable(), chain, new BlockDataCommands());
         }
     }
 
@@ -1,11 +1,14 @@
 package redempt.redlib.blockdata;
 
 import org.bukkit.Bukkit;
+import org.bukkit.World;
 import org.bukkit.block.Block;
+import org.bukkit.block.BlockFace;
 import org.bukkit.event.Cancellable;
 import org.bukkit.event.Event;
 import org.bukkit.event.EventHandler;
 import org.bukkit.event.EventPriority;
+import org.bukkit.event.HandlerList;
 import org.bukkit.event.Listener;
 import org.bukkit.event.block.BlockBreakEvent;
 import org.bukkit.event.block.BlockBurnEvent;
@@ -16,13 +19,14 @@ import org.bukkit.event.block.BlockPistonRetractEvent;
 import org.bukkit.event.entity.EntityChangeBlockEvent;
 import org.bukkit.event.entity.EntityExplodeEvent;
 import org.bukkit.plugin.Plugin;
+import redempt.redlib.blockdata.events.BulkDataBlockDestroyEvent;
+import redempt.redlib.blockdata.events.BulkDataBlockMoveEvent;
 import redempt.redlib.blockdata.events.DataBlockDestroyEvent;
 import redempt.redlib.blockdata.events.DataBlockDestroyEvent.DestroyCause;
 import redempt.redlib.blockdata.events.DataBlockMoveEvent;
-import redempt.redlib.json.JSONMap;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -62,28 +66,40 @@ class BlockDataListener implements Listener {
         handleExplosion(e.blockList(), e);
     }
 
+    private static boolean hasListeners(HandlerList handlers) {
+        return handlers.getRegisteredListeners().length > 0;
+    }
+
     private void handleExplosion(List<Block> blocks, Cancellable e) {
-        List<DataBlock> toRemove = new ArrayList<>();
-        blocks.forEach(b -> {
-            DataBlock db = manager.getDataBlock(b);
-            if (db == null) {
-                return;
-            }
-            DataBlockDestroyEvent ev = new DataBlockDestroyEvent(db, (Event) e, DestroyCause.EXPLOSION);
-            Bukkit.getPluginManager().callEvent(ev);
-            if (!ev.isCancelled()) {
-                toRemove.add(db);
+        List<DataBlock> dataBlocks = manager.getDataBlocks(blocks);
+        if (dataBlocks.isEmpty()) {
+            return;
+        }
+        BulkDataBlockDestroyEvent bulk = new BulkDataBlockDestroyEvent(dataBlocks, (Event) e, DestroyCause.EXPLOSION);
+        Bukkit.getPluginManager().callEvent(bulk);
+        if (bulk.isCancelled()) {
+            return;
+        }
+        List<DataBlock> toRemove = bulk.getDataBlocks();
+        if (hasListeners(DataBlockDestroyEvent.getHandlerList())) {
+            toRemove = new ArrayList<>();
+            for (DataBlock db : bulk.getDataBlocks()) {
+                DataBlockDestroyEvent ev = new DataBlockDestroyEvent(db, (Event) e, DestroyCause.EXPLOSION);
+                Bukkit.getPluginManager().callEvent(ev);
+                if (!ev.isCancelled()) {
+                    toRemove.add(db);
+                }
             }
-        });
+        }
         if (e.isCancelled()) {
             return;
         }
-        toRemove.forEach(manager::remove);
+        manager.removeAll(toRemove);
     }
 
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onCombust(BlockBurnEvent e) {
-        DataBlock db = manager.getDataBlock(e.getBlock());
+        DataBlock db = manager.getDataBlock(e.getBlock(), false);
         fireDestroy(db, e, DestroyCause.COMBUST);
     }
 
@@ -99,36 +115,42 @@ class BlockDataListener implements Listener {
 
     @EventHandler(priority = EventPriority.MONITOR, ignoreCancelled = true)
     public void onEntityChangeBlock(EntityChangeBlockEvent e) {
-        DataBlock db = manager.getDataBlock(e.getBlock());
+        DataBlock db = manager.getDataBlock(e.getBlock(), false);
         fireDestroy(db, e, DestroyCause.ENTITY);
     }
 
     private void handlePiston(List<Block> blocks, BlockPistonEvent e) {
-        List<DataBlock> toMove = new ArrayList<>();
-        blocks.forEach(b -> {
-            DataBlock db = manager.getDataBlock(b);
-            if (db == null) {
-                return;
-            }
-            Block destination = db.getBlock().getRelative(e.getDirection());
-            DataBlockMoveEvent ev = new DataBlockMoveEvent(db, destination, e);
-            Bukkit.getPluginManager().callEvent(ev);
-            if (!ev.isCancelled()) {
-                toMove.add(db);
+        List<DataBlock> dataBlocks = manager.getDataBlocks(blocks);
+        if (dataBlocks.isEmpty()) {
+            return;
+        }
+        World world = e.getBlock().getWorld();
+        BlockFace direction = e.getDirection();
+        Map<DataBlock, Block> destinations = new LinkedHashMap<>();
+        for (DataBlock db : dataBlocks) {
+            BlockPosition pos = db.getBlockPosition();
+            destinations.put(db, world.getBlockAt(pos.getX() + direction.getModX(), pos.getY() + direction.getModY(), pos.getZ() + direction.getModZ()));
+        }
+        BulkDataBlockMoveEvent bulk = new BulkDataBlockMoveEvent(destinations, e);
+        Bukkit.getPluginManager().callEvent(bulk);
+        if (bulk.isCancelled()) {
+            return;
+        }
+        Map<DataBlock, Block> toMove = bulk.getDestinations();
+        if (hasListeners(DataBlockMoveEvent.getHandlerList())) {
+            toMove = new LinkedHashMap<>();
+            for (Map.Entry<DataBlock, Block> entry : bulk.getDestinations().entrySet()) {
+                DataBlockMoveEvent ev = new DataBlockMoveEvent(entry.getKey(), entry.getValue(), e);
+                Bukkit.getPluginManager().callEvent(ev);
+                if (!ev.isCancelled()) {
+                    toMove.put(entry.getKey(), entry.getValue());
+                }
             }
-        });
+        }
         if (e.isCancelled()) {
             return;
         }
-        Map<Block, JSONMap> moved = new HashMap<>();
-        toMove.forEach(db -> {
-            Block destination = db.getBlock().getRelative(e.getDirection());
-            moved.put(destination, db.data);
-        });
-        toMove.forEach(manager::remove);
-        moved.forEach((block, data) -> {
-            manager.getDataBlock(block).data = data;
-        });
+        manager.moveAll(toMove);
     }
 
 }
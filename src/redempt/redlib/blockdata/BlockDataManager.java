@@ -1,22 +1,44 @@
 package redempt.redlib.blockdata;
 
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
 import org.bukkit.World;
 import org.bukkit.block.Block;
 import org.bukkit.event.world.ChunkLoadEvent;
 import org.bukkit.event.world.ChunkUnloadEvent;
 import org.bukkit.plugin.Plugin;
+import org.bukkit.util.Vector;
 import redempt.redlib.RedLib;
 import redempt.redlib.blockdata.backend.BlockDataBackend;
+import redempt.redlib.blockdata.backend.RegionFileBackend;
+import redempt.redlib.blockdata.metrics.BlockDataMetrics;
 import redempt.redlib.json.JSONMap;
-import redempt.redlib.json.JSONParser;
 import redempt.redlib.misc.EventListener;
+import redempt.redlib.misc.Task;
+import redempt.redlib.multiblock.Rotator;
+import redempt.redlib.region.CuboidRegion;
 
+import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * Manages persistent data attached to blocks, backed by either SQLite or chunk PersistentDataContainers
@@ -48,7 +70,79 @@ public class BlockDataManager {
      * @return The created BlockDataManager
      */
     public static BlockDataManager createSQLite(Plugin plugin, Path path, boolean autoLoad, boolean events) {
-        BlockDataBackend backend = BlockDataBackend.sqlite(path);
+        return createSQLite(plugin, path, autoLoad, events, DEFAULT_BATCH_SIZE, DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * Creates a BlockDataManager backed by SQLite, which writes modified chunks in batches
+     *
+     * @param plugin    The Plugin that owns the data
+     * @param path      The path to the SQLite database
+     * @param autoLoad  Whether to automatically load data for newly-loaded chunks
+     * @param events    Whether to listen for events to automatically move and remove DataBlocks in response to their owning blocks being moved and removed
+     * @param batchSize The maximum number of chunks to write to the database in a single transaction
+     * @param maxQueued The number of chunks waiting to be written at which saving will block until they have been written
+     * @return The created BlockDataManager
+     */
+    public static BlockDataManager createSQLite(Plugin plugin, Path path, boolean autoLoad, boolean events, int batchSize, int maxQueued) {
+        BlockDataBackend backend = BlockDataBackend.writeBehind(BlockDataBackend.sqlite(path), batchSize, maxQueued);
+        return new BlockDataManager(plugin, backend, autoLoad, events);
+    }
+
+    /**
+     * Creates a BlockDataManager backed by SQLite in WAL mode, which writes modified chunks in batches on one
+     * connection while loading chunks concurrently on a pool of read-only connections
+     *
+     * @param plugin    The Plugin that owns the data
+     * @param path      The path to the SQLite database
+     * @param autoLoad  Whether to automatically load data for newly-loaded chunks
+     * @param events    Whether to listen for events to automatically move and remove DataBlocks in response to their owning blocks being moved and removed
+     * @param batchSize The maximum number of chunks to write to the database in a single transaction
+     * @param maxQueued The number of chunks waiting to be written at which saving will block until they have been written
+     * @param readers   The number of threads to load chunks on
+     * @return The created BlockDataManager
+     */
+    public static BlockDataManager createSQLite(Plugin plugin, Path path, boolean autoLoad, boolean events, int batchSize, int maxQueued, int readers) {
+        BlockDataBackend backend = BlockDataBackend.writeBehind(BlockDataBackend.sqlite(path, readers), batchSize, maxQueued);
+        return new BlockDataManager(plugin, backend, autoLoad, events);
+    }
+
+    /**
+     * Creates a BlockDataManager backed by region files, which each store the data for 32x32 chunks
+     *
+     * @param plugin   The Plugin that owns the data
+     * @param dir      The directory to store the region files in
+     * @param autoLoad Whether to automatically load data for newly-loaded chunks
+     * @param events   Whether to listen for events to automatically move and remove DataBlocks in response to their owning blocks being moved and removed
+     * @return The created BlockDataManager
+     */
+    public static BlockDataManager createRegionFile(Plugin plugin, Path dir, boolean autoLoad, boolean events) {
+        return new BlockDataManager(plugin, BlockDataBackend.regionFile(dir), autoLoad, events);
+    }
+
+    /**
+     * Creates a BlockDataManager backed by region files, first migrating all data from a SQLite database if
+     * it exists. The SQLite database is renamed after it has been migrated so it will not be migrated again.
+     *
+     * @param plugin     The Plugin that owns the data
+     * @param dir        The directory to store the region files in
+     * @param sqlitePath The path to the SQLite database to migrate from
+     * @param autoLoad   Whether to automatically load data for newly-loaded chunks
+     * @param events     Whether to listen for events to automatically move and remove DataBlocks in response to their owning blocks being moved and removed
+     * @return The created BlockDataManager
+     */
+    public static BlockDataManager createRegionFile(Plugin plugin, Path dir, Path sqlitePath, boolean autoLoad, boolean events) {
+        RegionFileBackend backend = BlockDataBackend.regionFile(dir);
+        if (Files.exists(sqlitePath)) {
+            BlockDataBackend sqlite = BlockDataBackend.sqlite(sqlitePath);
+            try {
+                backend.migrateFrom(sqlite).get();
+                sqlite.close().get();
+                Files.move(sqlitePath, sqlitePath.resolveSibling(sqlitePath.getFileName() + "_migrated"));
+            } catch (InterruptedException | ExecutionException | IOException e) {
+                e.printStackTrace();
+            }
+        }
         return new BlockDataManager(plugin, backend, autoLoad, events);
     }
 
@@ -62,16 +156,52 @@ public class BlockDataManager {
      * @return The created BlockDataManager
      */
     public static BlockDataManager createAuto(Plugin plugin, Path path, boolean autoLoad, boolean events) {
-        BlockDataBackend backend = RedLib.MID_VERSION >= 14 ? BlockDataBackend.pdc(plugin) : BlockDataBackend.sqlite(path);
-        return new BlockDataManager(plugin, backend, autoLoad, events);
+        if (RedLib.MID_VERSION < 14) {
+            return createSQLite(plugin, path, autoLoad, events);
+        }
+        return createPDC(plugin, autoLoad, events);
     }
 
+    private static final int DEFAULT_BATCH_SIZE = 256;
+    private static final int DEFAULT_MAX_QUEUED = 4096;
+    private static final int MAX_DELTAS = 16;
+    private static final int LOAD_PAGE_SIZE = 256;
+
     private BlockDataBackend backend;
     private Plugin plugin;
     private BlockDataListener listener;
-    private Map<ChunkPosition, Map<BlockPosition, DataBlock>> dataBlocks = new ConcurrentHashMap<>();
+    private BlockIndex dataBlocks = new BlockIndex();
     private Map<ChunkPosition, CompletableFuture<Void>> loading = new ConcurrentHashMap<>();
+    private List<PendingRemoval> removals = new CopyOnWriteArrayList<>();
     private Set<ChunkPosition> modified = Collections.synchronizedSet(new HashSet<>());
+    private LongAdder syncMisses = new LongAdder();
+    private LongAdder cacheHits = new LongAdder();
+    private LongAdder cacheMisses = new LongAdder();
+    private LongAdder evictions = new LongAdder();
+    private Queue<LoadedChunk> clock = new ConcurrentLinkedQueue<>();
+    private volatile long cacheLimit = -1;
+    private AtomicBoolean evictionScheduled = new AtomicBoolean();
+    private Map<ChunkPosition, Long> pendingUnloads = new LinkedHashMap<>();
+    private LongAdder avoidedReloads = new LongAdder();
+    private long unloadDelay = 0;
+    private Task unloadTask;
+    private Map<String, DataBlockSchema> schemas = new ConcurrentHashMap<>();
+    private boolean cacheOnly = false;
+    private Task prefetchTask;
+    private ExecutorService saveExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "RedLib BlockDataManager save");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile CompletableFuture<?> saving = CompletableFuture.completedFuture(null);
+    private Map<ChunkPosition, CompletableFuture<?>> writing = new ConcurrentHashMap<>();
+    private Task autoSaveTask;
+    private Deque<ChunkPosition> autoSaveQueue = new ArrayDeque<>();
+    private int autoSaveInterval;
+    private int ticksUntilAutoSave;
+    private long autoSaveBudget;
+    private volatile int compressionThreshold = -1;
+    private volatile BlockDataMetrics metrics = BlockDataMetrics.NONE;
 
     /**
      * Asynchronously retrieves a DataBlock
@@ -81,30 +211,50 @@ public class BlockDataManager {
      * @return A CompletableFuture with the DataBlock
      */
     public CompletableFuture<DataBlock> getDataBlockAsync(Block block, boolean create) {
-        ChunkPosition pos = new ChunkPosition(block.getChunk());
+        String world = block.getWorld().getName();
+        LoadedChunk chunk = dataBlocks.get(world, block.getX() >> 4, block.getZ() >> 4);
+        if (chunk != null) {
+            cacheHits.increment();
+            return CompletableFuture.completedFuture(getDataBlock(chunk, block, create));
+        }
+        cacheMisses.increment();
+        ChunkPosition pos = new ChunkPosition(block.getX() >> 4, block.getZ() >> 4, world);
         return load(pos).thenApply(n -> {
-            BlockPosition bPos = new BlockPosition(block);
-            DataBlock db = dataBlocks.get(pos).get(bPos);
+            LoadedChunk loaded = dataBlocks.get(pos);
+            return loaded == null ? null : getDataBlock(loaded, block, create);
+        });
+    }
+
+    private DataBlock getDataBlock(LoadedChunk chunk, Block block, boolean create) {
+        DataBlock db = chunk.get(block.getX(), block.getY(), block.getZ());
+        if (db != null || !create) {
+            return db;
+        }
+        synchronized (chunk) {
+            db = chunk.get(block.getX(), block.getY(), block.getZ());
             if (db != null) {
                 return db;
             }
-            if (!create) {
-                return null;
-            }
-            db = new DataBlock(new JSONMap(), bPos, block.getWorld().getName(), this);
-            dataBlocks.get(pos).put(bPos, db);
-            setModified(pos);
-            return db;
-        });
+            db = new DataBlock(new JSONMap(), new BlockPosition(block), chunk.getPosition().getWorldName(), this);
+            chunk.put(db);
+        }
+        setModified(chunk, db.getBlockPosition());
+        return db;
     }
 
     private BlockDataManager(Plugin plugin, BlockDataBackend backend, boolean autoLoad, boolean events) {
         this.plugin = plugin;
         this.backend = backend;
-        new EventListener<>(plugin, ChunkUnloadEvent.class, e -> unload(new ChunkPosition(e.getChunk())));
-        if (autoLoad) {
-            new EventListener<>(plugin, ChunkLoadEvent.class, e -> load(new ChunkPosition(e.getChunk())));
-        }
+        new EventListener<>(plugin, ChunkUnloadEvent.class, e -> scheduleUnload(new ChunkPosition(e.getChunk())));
+        new EventListener<>(plugin, ChunkLoadEvent.class, e -> {
+            ChunkPosition pos = new ChunkPosition(e.getChunk());
+            // Only the chunk itself loading again cancels a pending unload, since the data being accessed while
+            // the chunk is unloaded does not mean it will stay loaded
+            cancelUnload(pos);
+            if (autoLoad) {
+                load(pos);
+            }
+        });
         if (events) {
             listener = new BlockDataListener(this, plugin);
         }
@@ -119,6 +269,13 @@ public class BlockDataManager {
         return backend.attemptMigration(this);
     }
 
+    /**
+     * @return The backend this BlockDataManager stores its data in
+     */
+    public BlockDataBackend getBackend() {
+        return backend;
+    }
+
     /**
      * @return The plugin that owns this BlockDataManager
      */
@@ -127,27 +284,301 @@ public class BlockDataManager {
     }
 
     /**
-     * Saves all data loaded in this BlockDataManager
+     * Saves all data loaded in this BlockDataManager and waits for the backend to finish writing it. If the
+     * backend supports deltas, chunks where only a few DataBlocks changed are saved by appending just
+     * those DataBlocks to the stored data.
      */
     public void save() {
+        saveWithReport();
+    }
+
+    /**
+     * Saves all data loaded in this BlockDataManager and waits for the backend to finish writing it, like
+     * {@link BlockDataManager#save()}
+     *
+     * @return A report of the chunks which were saved
+     */
+    public SaveReport saveWithReport() {
+        return unwrap(saveAsync());
+    }
+
+    /**
+     * Saves all data loaded in this BlockDataManager without waiting for it to be written. The modified
+     * DataBlocks are copied on the calling thread, after which they can be modified again freely; the copies
+     * are encoded and handed to the backend as a single batch on another thread. Saves are written in the order
+     * they were started. Backends which can only be used from the server thread are written to immediately.
+     *
+     * @return A CompletableFuture for the saving task, completed with a report of the chunks which were saved
+     */
+    public synchronized CompletableFuture<SaveReport> saveAsync() {
+        List<ChunkSnapshot> snapshots = new ArrayList<>();
+        return save(snapshots, snapshotModified(snapshots));
+    }
+
+    private synchronized SaveReport snapshotModified(List<ChunkSnapshot> snapshots) {
         List<ChunkPosition> modified = new ArrayList<>(this.modified);
-        modified.forEach(c -> save(c, true));
-        this.modified.clear();
-        unwrap(backend.saveAll());
+        this.modified.removeAll(modified);
+        modified.forEach(pos -> snapshot(pos, snapshots));
+        return report(snapshots);
+    }
+
+    private void snapshot(ChunkPosition pos, List<ChunkSnapshot> snapshots) {
+        LoadedChunk chunk = dataBlocks.get(pos);
+        if (chunk == null || !chunk.isDirty()) {
+            return;
+        }
+        if (chunk.size() == 0) {
+            dataBlocks.remove(pos);
+        }
+        snapshots.add(snapshot(chunk));
+    }
+
+    private SaveReport report(List<ChunkSnapshot> snapshots) {
+        return new SaveReport(snapshots.size(), (int) snapshots.stream().filter(ChunkSnapshot::isDelta).count());
+    }
+
+    private CompletableFuture<SaveReport> save(List<ChunkSnapshot> snapshots, SaveReport report) {
+        return save(snapshots, report, true);
+    }
+
+    private synchronized CompletableFuture<SaveReport> save(List<ChunkSnapshot> snapshots, SaveReport report, boolean commit) {
+        if (backend.requiresMainThread()) {
+            unwrap(write(snapshots, report, commit));
+            return CompletableFuture.completedFuture(report);
+        }
+        CompletableFuture<SaveReport> future = saving.handle((v, e) -> null)
+                .thenComposeAsync(v -> write(snapshots, report, commit), saveExecutor)
+                .thenApply(v -> report);
+        saving = future;
+        track(snapshots.stream().map(ChunkSnapshot::getPosition).collect(Collectors.toList()), future);
+        return future;
+    }
+
+    /**
+     * Records that data for the given chunks is on its way to the backend until the future completes, so that
+     * loading them in the meantime waits for it instead of reading the old data
+     */
+    private void track(Collection<ChunkPosition> positions, CompletableFuture<?> future) {
+        if (future.isDone() || positions.isEmpty()) {
+            return;
+        }
+        positions.forEach(pos -> writing.put(pos, future));
+        future.whenComplete((v, e) -> positions.forEach(pos -> writing.remove(pos, future)));
+    }
+
+    private CompletableFuture<Void> write(List<ChunkSnapshot> snapshots, SaveReport report, boolean commit) {
+        Map<ChunkPosition, byte[]> batch = new LinkedHashMap<>();
+        Map<ChunkPosition, byte[]> deltas = new LinkedHashMap<>();
+        long bytes = 0;
+        long start = System.nanoTime();
+        for (ChunkSnapshot snapshot : snapshots) {
+            byte[] data = ChunkDataCodec.compress(snapshot.encode(), compressionThreshold);
+            (snapshot.isDelta() ? deltas : batch).put(snapshot.getPosition(), data);
+            bytes += data == null ? 0 : data.length;
+        }
+        metrics.recordSince("save.encode", start);
+        metrics.increment("save.chunks", batch.size());
+        metrics.increment("save.deltas", deltas.size());
+        metrics.increment("save.bytes", bytes);
+        long written = bytes;
+        long writeStart = System.nanoTime();
+        CompletableFuture<Void> future = batch.isEmpty() ? CompletableFuture.completedFuture(null) : backend.saveBatch(batch);
+        if (!deltas.isEmpty()) {
+            future = future.thenCompose(v -> backend.appendDeltas(deltas));
+        }
+        if (commit) {
+            future = future.thenCompose(v -> backend.saveAll());
+        }
+        return future.thenRun(() -> {
+            metrics.recordSince("save.write", writeStart);
+            report.complete(written);
+        });
+    }
+
+    /**
+     * Enables compressing the data saved for chunks with Deflate, using a preset dictionary so that even small
+     * chunks compress well. Data is only compressed if it is at least the given size and compression makes it
+     * smaller. Uncompressed data which was already stored can still be loaded, and is compressed the next time
+     * it is saved.
+     *
+     * @param threshold The minimum size in bytes of the encoded data for a chunk to compress, or -1 to disable
+     *                  compression
+     */
+    public void setCompression(int threshold) {
+        compressionThreshold = threshold;
+    }
+
+    /**
+     * @return The minimum size in bytes of the encoded data for a chunk to compress, or -1 if compression is
+     * disabled
+     */
+    public int getCompression() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Enables automatically saving modified data on an interval. Rather than saving everything at once, each
+     * autosave copies modified chunks for at most the given amount of time per tick, handing each tick's chunks
+     * to the backend to be encoded and written off the server thread, until all of the chunks which were
+     * modified when it started have been saved. The next autosave starts the given number of ticks after
+     * that.
+     *
+     * @param intervalTicks The number of ticks between autosaves, or 0 to disable autosaving
+     * @param budgetMillis  The maximum number of milliseconds to spend copying chunks each tick. At least one
+     *                      chunk is copied each tick regardless.
+     * @throws IllegalArgumentException If autosaving is enabled with a budget which is not positive
+     */
+    public void setAutoSave(int intervalTicks, double budgetMillis) {
+        if (intervalTicks > 0 && !(budgetMillis > 0)) {
+            throw new IllegalArgumentException("Autosave budget must be positive");
+        }
+        if (autoSaveTask != null) {
+            autoSaveTask.cancel();
+            autoSaveTask = null;
+        }
+        autoSaveQueue.clear();
+        if (intervalTicks <= 0) {
+            return;
+        }
+        autoSaveInterval = intervalTicks;
+        ticksUntilAutoSave = intervalTicks;
+        autoSaveBudget = (long) (budgetMillis * 1000000);
+        autoSaveTask = Task.syncRepeating(plugin, this::autoSaveTick, 1, 1);
+    }
+
+    /**
+     * @return Whether an autosave is in progress
+     */
+    public boolean isAutoSaving() {
+        return !autoSaveQueue.isEmpty();
+    }
+
+    private void autoSaveTick() {
+        if (autoSaveQueue.isEmpty()) {
+            if (--ticksUntilAutoSave > 0) {
+                return;
+            }
+            ticksUntilAutoSave = autoSaveInterval;
+            synchronized (modified) {
+                autoSaveQueue.addAll(modified);
+            }
+            if (autoSaveQueue.isEmpty()) {
+                return;
+            }
+        }
+        long start = System.nanoTime();
+        List<ChunkSnapshot> snapshots = new ArrayList<>();
+        synchronized (this) {
+            // Always copy at least one chunk, so that a budget finer than the clock can measure still makes progress
+            do {
+                ChunkPosition pos = autoSaveQueue.poll();
+                if (modified.remove(pos)) {
+                    snapshot(pos, snapshots);
+                }
+            } while (!autoSaveQueue.isEmpty() && System.nanoTime() - start < autoSaveBudget);
+            // Only commit once the whole autosave has been handed to the backend
+            boolean done = autoSaveQueue.isEmpty();
+            if (!snapshots.isEmpty() || done) {
+                save(snapshots, report(snapshots), done);
+            }
+        }
+    }
+
+    /**
+     * Waits for saves started with {@link BlockDataManager#saveAsync()} to be handed to the backend before
+     * running a write, so that older data never overwrites newer data
+     */
+    private CompletableFuture<Void> afterSaving(Supplier<CompletableFuture<Void>> write) {
+        CompletableFuture<?> current = saving;
+        if (current.isDone()) {
+            return write.get();
+        }
+        return current.handle((v, e) -> null).thenCompose(v -> write.get());
     }
 
     /**
      * Saves all data loaded in this BlockDataManager and closes connections where needed
      */
     public void saveAndClose() {
+        setPrefetchRadius(-1);
+        setUnloadDelay(0);
+        setAutoSave(0, 0);
         save();
         unwrap(backend.close());
+        saveExecutor.shutdown();
+        // Gauges reference this BlockDataManager, so they would keep it reachable through the metrics
+        setMetrics(BlockDataMetrics.NONE);
+    }
+
+    /**
+     * Saves all data loaded in this BlockDataManager and closes connections where needed, giving up on waiting
+     * for the data to be written after a timeout. If the timeout is reached, the backend is left open so the
+     * writes in progress can still finish.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit    The unit of the timeout
+     * @return A report of the chunks which were saved, which is not complete if the timeout was reached
+     */
+    public SaveReport saveAndClose(long timeout, TimeUnit unit) {
+        setPrefetchRadius(-1);
+        setUnloadDelay(0);
+        setAutoSave(0, 0);
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        List<ChunkSnapshot> snapshots = new ArrayList<>();
+        SaveReport report;
+        CompletableFuture<SaveReport> future;
+        synchronized (this) {
+            report = snapshotModified(snapshots);
+            future = save(snapshots, report);
+        }
+        try {
+            future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+            backend.close().get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            return report;
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        } finally {
+            setMetrics(BlockDataMetrics.NONE);
+        }
+        saveExecutor.shutdown();
+        return report;
     }
 
     protected void setModified(ChunkPosition pos) {
+        LoadedChunk chunk = dataBlocks.get(pos);
+        if (chunk != null) {
+            chunk.markAllDirty();
+        }
         modified.add(pos);
     }
 
+    void setModified(DataBlock db) {
+        BlockPosition bPos = db.getBlockPosition();
+        LoadedChunk chunk = dataBlocks.get(db.getWorldName(), bPos.getX() >> 4, bPos.getZ() >> 4);
+        if (chunk == null) {
+            modified.add(db.getChunkPosition());
+            return;
+        }
+        setModified(chunk, bPos);
+    }
+
+    private void setModified(LoadedChunk chunk, BlockPosition bPos) {
+        chunk.markDirty(bPos);
+        modified.add(chunk.getPosition());
+    }
+
+    void updateIndex(DataBlock db, String key) {
+        if (dataBlocks.getSecondary().isEmpty()) {
+            return;
+        }
+        BlockPosition bPos = db.getBlockPosition();
+        LoadedChunk chunk = dataBlocks.get(db.getWorldName(), bPos.getX() >> 4, bPos.getZ() >> 4);
+        if (chunk != null) {
+            chunk.reindex(db, key);
+        }
+    }
+
     /**
      * Gets a DataBlock, creating one if it doesn't exist
      *
@@ -163,23 +594,131 @@ public class BlockDataManager {
             return CompletableFuture.completedFuture(null);
         }
         modified.remove(pos);
-        JSONMap map = new JSONMap();
-        Map<BlockPosition, DataBlock> blocks = dataBlocks.get(pos);
-        if (blocks == null) {
+        LoadedChunk chunk = dataBlocks.get(pos);
+        if (chunk == null || (!force && !chunk.isDirty())) {
             return CompletableFuture.completedFuture(null);
         }
-        if (blocks.size() == 0) {
+        CompletableFuture<Void> future;
+        if (chunk.size() == 0) {
             dataBlocks.remove(pos);
-            return backend.remove(pos);
+            chunk.encode();
+            future = afterSaving(() -> backend.remove(pos));
+        } else {
+            if (force) {
+                chunk.markAllDirty();
+            }
+            Map<ChunkPosition, byte[]> batch = new HashMap<>(1);
+            Map<ChunkPosition, byte[]> deltas = new HashMap<>(1);
+            serialize(chunk, batch, deltas);
+            future = afterSaving(() -> deltas.isEmpty() ? backend.save(pos, batch.get(pos)) : backend.appendDeltas(deltas));
         }
-        blocks.forEach((k, v) -> {
-            map.put(k.toString(), v.data);
-        });
-        String data = map.toString();
-        return backend.save(pos, data);
+        track(Collections.singletonList(pos), future);
+        return future;
+    }
+
+    private ChunkSnapshot snapshot(LoadedChunk chunk) {
+        synchronized (chunk) {
+            return chunk.snapshot(backend.supportsDeltas() && chunk.shouldSaveDelta(MAX_DELTAS));
+        }
+    }
+
+    private void serialize(LoadedChunk chunk, Map<ChunkPosition, byte[]> batch, Map<ChunkPosition, byte[]> deltas) {
+        long start = System.nanoTime();
+        byte[] data;
+        synchronized (chunk) {
+            if (backend.supportsDeltas() && chunk.shouldSaveDelta(MAX_DELTAS)) {
+                data = ChunkDataCodec.compress(chunk.encodeDelta(), compressionThreshold);
+                deltas.put(chunk.getPosition(), data);
+                metrics.increment("save.deltas");
+            } else {
+                data = ChunkDataCodec.compress(chunk.encode(), compressionThreshold);
+                batch.put(chunk.getPosition(), data);
+                metrics.increment("save.chunks");
+            }
+        }
+        metrics.recordSince("save.encode", start);
+        metrics.increment("save.bytes", data == null ? 0 : data.length);
+    }
+
+    private void scheduleUnload(ChunkPosition pos) {
+        if (unloadDelay <= 0) {
+            unload(pos);
+            return;
+        }
+        synchronized (pendingUnloads) {
+            pendingUnloads.remove(pos);
+            pendingUnloads.put(pos, System.currentTimeMillis() + unloadDelay);
+        }
+    }
+
+    private void cancelUnload(ChunkPosition pos) {
+        boolean cancelled;
+        synchronized (pendingUnloads) {
+            cancelled = pendingUnloads.remove(pos) != null;
+        }
+        if (cancelled) {
+            avoidedReloads.increment();
+        }
+    }
+
+    private void unloadExpired(boolean all) {
+        long now = System.currentTimeMillis();
+        List<ChunkPosition> expired = new ArrayList<>();
+        synchronized (pendingUnloads) {
+            Iterator<Map.Entry<ChunkPosition, Long>> iter = pendingUnloads.entrySet().iterator();
+            while (iter.hasNext()) {
+                Map.Entry<ChunkPosition, Long> entry = iter.next();
+                if (!all && entry.getValue() > now) {
+                    break;
+                }
+                expired.add(entry.getKey());
+                iter.remove();
+            }
+        }
+        expired.forEach(this::unload);
+    }
+
+    /**
+     * Sets how long the data for a chunk is kept loaded after the chunk unloads. If the chunk loads again
+     * before then, its data does not need to be saved and loaded again. Data which is waiting to be unloaded
+     * is still saved by {@link BlockDataManager#save()}.
+     *
+     * @param ticks The number of ticks to keep data loaded after its chunk unloads, or 0 to unload it immediately
+     */
+    public void setUnloadDelay(int ticks) {
+        if (unloadTask != null) {
+            unloadTask.cancel();
+            unloadTask = null;
+        }
+        unloadDelay = ticks * 50L;
+        if (ticks <= 0) {
+            unloadExpired(true);
+            return;
+        }
+        unloadTask = Task.syncRepeating(plugin, () -> unloadExpired(false), 20, 20);
+    }
+
+    /**
+     * @return The number of chunks whose data is being kept loaded after they unloaded
+     */
+    public int getPendingUnloads() {
+        synchronized (pendingUnloads) {
+            return pendingUnloads.size();
+        }
+    }
+
+    /**
+     * @return The number of times a chunk loaded again while its data was being kept loaded after it unloaded,
+     * so the data did not need to be saved and loaded again
+     */
+    public long getAvoidedReloads() {
+        return avoidedReloads.sum();
     }
 
-    private CompletableFuture<Void> unload(ChunkPosition pos) {
+    private synchronized CompletableFuture<Void> unload(ChunkPosition pos) {
+        synchronized (pendingUnloads) {
+            pendingUnloads.remove(pos);
+        }
         CompletableFuture<Void> load = loading.remove(pos);
         if (load != null) {
             load.cancel(true);
@@ -195,9 +734,14 @@ public class BlockDataManager {
      * @param db The DataBlock to remove
      */
     public void remove(DataBlock db) {
-        ChunkPosition cpos = db.getChunkPosition();
-        setModified(cpos);
-        Optional.ofNullable(dataBlocks.get(cpos)).ifPresent(m -> m.remove(db.getBlockPosition()));
+        BlockPosition bPos = db.getBlockPosition();
+        LoadedChunk chunk = dataBlocks.get(db.getWorldName(), bPos.getX() >> 4, bPos.getZ() >> 4);
+        if (chunk == null) {
+            setModified(db.getChunkPosition());
+            return;
+        }
+        chunk.remove(bPos);
+        setModified(chunk, bPos);
     }
 
     /**
@@ -209,10 +753,10 @@ public class BlockDataManager {
      */
     public CompletableFuture<DataBlock> moveAsync(DataBlock db, Block location) {
         remove(db);
-        ChunkPosition cpos = new ChunkPosition(location);
-        modified.add(cpos);
         return getDataBlockAsync(location, true).thenApply(b -> {
-            b.data = db.data;
+            b.copyFrom(db);
+            setModified(b);
+            updateIndex(b, null);
             return b;
         });
     }
@@ -283,8 +827,8 @@ public class BlockDataManager {
      * @return The DataBlocks if they are loaded, otherwise an empty collection
      */
     public Collection<DataBlock> getLoaded(World world, int cx, int cz) {
-        ChunkPosition pos = new ChunkPosition(cx, cz, world.getName());
-        return Optional.ofNullable(dataBlocks.get(pos)).map(Map::values).orElseGet(ArrayList::new);
+        LoadedChunk chunk = dataBlocks.get(world.getName(), cx, cz);
+        return chunk == null ? new ArrayList<>() : chunk.getBlocks();
     }
 
     /**
@@ -296,79 +840,1009 @@ public class BlockDataManager {
      * @return Whether the DataBlocks for the given chunk are loaded
      */
     public boolean isLoaded(World world, int cx, int cz) {
-        ChunkPosition pos = new ChunkPosition(cx, cz, world.getName());
-        return dataBlocks.containsKey(pos);
+        return dataBlocks.get(world.getName(), cx, cz) != null;
     }
 
-    private CompletableFuture<Void> load(ChunkPosition pos) {
-        if (dataBlocks.containsKey(pos)) {
+    private synchronized CompletableFuture<Void> load(ChunkPosition pos) {
+        if (dataBlocks.contains(pos)) {
             return CompletableFuture.completedFuture(null);
         }
         CompletableFuture<Void> load = loading.get(pos);
         if (load != null && !load.isDone()) {
             return load;
         }
-        dataBlocks.put(pos, new HashMap<>());
-        load = backend.load(pos).thenApply(s -> {
-            if (s == null) {
-                loading.remove(pos);
-                return null;
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        loading.put(pos, future);
+        long start = System.nanoTime();
+        CompletableFuture<?> pending = getPendingWrite(pos);
+        CompletableFuture<byte[]> read = pending == null ? backend.load(pos)
+                : pending.handle((v, e) -> null).thenCompose(v -> backend.load(pos));
+        read.whenComplete((data, e) -> {
+            LoadedChunk chunk;
+            try {
+                if (e != null) {
+                    throw e;
+                }
+                long decodeStart = System.nanoTime();
+                chunk = decode(pos, data);
+                metrics.recordSince("load.decode", decodeStart);
+                metrics.recordSince("load", start);
+            } catch (Throwable t) {
+                loading.remove(pos, future);
+                future.completeExceptionally(t);
+                return;
             }
-            JSONMap map = JSONParser.parseMap(s);
-            map.keySet().forEach(k -> load(k, map.getMap(k), pos));
-            loading.remove(pos);
-            return null;
+            synchronized (this) {
+                if (loading.remove(pos, future)) {
+                    publish(chunk);
+                }
+            }
+            future.complete(null);
         });
-        loading.put(pos, load);
-        return load;
+        return future;
     }
 
-    private void load(String key, JSONMap map, ChunkPosition pos) {
-        String[] split = key.split(" ");
-        int x = Integer.parseInt(split[0]);
-        int y = Integer.parseInt(split[1]);
-        int z = Integer.parseInt(split[2]);
-        BlockPosition bPos = new BlockPosition(x, y, z);
-        DataBlock db = new DataBlock(map, bPos, pos.getWorldName(), this);
-        dataBlocks.get(pos).put(bPos, db);
+    private void publish(LoadedChunk chunk) {
+        dataBlocks.put(chunk);
+        if (cacheLimit < 0) {
+            return;
+        }
+        clock.add(chunk);
+        if (clock.size() > dataBlocks.getChunkCount() * 2 + 64) {
+            clock.removeIf(c -> dataBlocks.get(c.getPosition()) != c);
+        }
+        if (dataBlocks.getBlockCount() > cacheLimit) {
+            requestEviction();
+        }
+    }
+
+    private void requestEviction() {
+        if (Bukkit.isPrimaryThread()) {
+            evict();
+            return;
+        }
+        if (evictionScheduled.compareAndSet(false, true)) {
+            Task.syncDelayed(plugin, () -> {
+                evictionScheduled.set(false);
+                evict();
+            });
+        }
+    }
+
+    private synchronized void evict() {
+        int visits = clock.size() * 2;
+        while (dataBlocks.getBlockCount() > cacheLimit && visits-- > 0) {
+            LoadedChunk chunk = clock.poll();
+            if (chunk == null) {
+                return;
+            }
+            ChunkPosition pos = chunk.getPosition();
+            if (dataBlocks.get(pos) != chunk) {
+                continue;
+            }
+            if (chunk.clearReferenced() || isChunkLoaded(pos)) {
+                clock.add(chunk);
+                continue;
+            }
+            // Loading the chunk again waits for this save to reach the backend, so it can be dropped right away
+            save(pos, false);
+            dataBlocks.remove(pos);
+            evictions.increment();
+        }
+    }
+
+    private boolean isChunkLoaded(ChunkPosition pos) {
+        World world = Bukkit.getWorld(pos.getWorldName());
+        return world != null && world.isChunkLoaded(pos.getX(), pos.getZ());
+    }
+
+    private DataBlock createDataBlock(JSONMap map, BlockPosition bPos, String world) {
+        return createDataBlock(map, bPos, world, this);
+    }
+
+    private DataBlock createDataBlock(JSONMap map, BlockPosition bPos, String world, BlockDataManager manager) {
+        DataBlock db = new DataBlock(map, bPos, world, manager);
+        Object name = map.get(DataBlockSchema.SCHEMA_KEY);
+        if (name != null) {
+            DataBlockSchema schema = schemas.get(name.toString());
+            if (schema != null) {
+                db.applySchema(schema);
+            }
+        }
+        return db;
+    }
+
+    /**
+     * Registers a schema so that DataBlocks using it will be loaded with it. Fields can no longer be added to a
+     * schema once it is registered. DataBlocks using the schema which were loaded before it was registered
+     * switch to it when they are retrieved with {@link BlockDataManager#getDataBlock(Block, DataBlockSchema)}.
+     *
+     * @param schema The schema to register
+     */
+    public void registerSchema(DataBlockSchema schema) {
+        schema.freeze();
+        schemas.put(schema.getName(), schema);
     }
 
     /**
-     * Gets a DataBlock for the given Block
+     * Gets a DataBlock which stores its data using the given schema, creating one if it doesn't exist. If the
+     * DataBlock exists but does not use the schema, it is switched to it, keeping its data.
+     *
+     * @param block  The Block data will be attached to
+     * @param schema The schema, which must be registered
+     * @return The DataBlock
+     */
+    public DataBlock getDataBlock(Block block, DataBlockSchema schema) {
+        if (schemas.get(schema.getName()) != schema) {
+            throw new IllegalStateException("Schema " + schema.getName() + " is not registered");
+        }
+        DataBlock db = getDataBlock(block, true);
+        if (db.schema != schema) {
+            db.applySchema(schema);
+            setModified(db);
+            updateIndex(db, null);
+        }
+        return db;
+    }
+
+    /**
+     * Starts maintaining a secondary index over a key, allowing the loaded DataBlocks which have the key, or a
+     * specific value for it, to be found without scanning every loaded DataBlock. Only loaded DataBlocks are
+     * indexed: DataBlocks enter the index when their chunks are loaded and leave it when they are unloaded.
+     *
+     * @param key The key to index
+     */
+    public void addIndex(String key) {
+        dataBlocks.getSecondary().addKey(key, dataBlocks.getChunks());
+    }
+
+    /**
+     * @param key The key
+     * @return Whether the key has a secondary index
+     */
+    public boolean isIndexed(String key) {
+        return dataBlocks.getSecondary().isIndexed(key);
+    }
+
+    /**
+     * Gets all loaded DataBlocks which have a key
+     *
+     * @param key The key, which must be indexed with {@link BlockDataManager#addIndex(String)}
+     * @return The loaded DataBlocks which have a value for the key
+     */
+    public List<DataBlock> getIndexed(String key) {
+        return dataBlocks.getSecondary().query(key, null, null, null);
+    }
+
+    /**
+     * Gets all loaded DataBlocks which have a specific value for a key. Numbers are compared by value, so
+     * searching for an int will also find DataBlocks where the value is stored as a long.
+     *
+     * @param key   The key, which must be indexed with {@link BlockDataManager#addIndex(String)}
+     * @param value The value to search for, or null to find all DataBlocks which have the key
+     * @return The loaded DataBlocks with the value
+     */
+    public List<DataBlock> getIndexed(String key, Object value) {
+        return dataBlocks.getSecondary().query(key, value, null, null);
+    }
+
+    /**
+     * Gets all loaded DataBlocks in a world which have a specific value for a key
+     *
+     * @param key   The key, which must be indexed with {@link BlockDataManager#addIndex(String)}
+     * @param value The value to search for, or null to find all DataBlocks which have the key
+     * @param world The world to search
+     * @return The loaded DataBlocks in the world with the value
+     */
+    public List<DataBlock> getIndexed(String key, Object value, World world) {
+        return dataBlocks.getSecondary().query(key, value, world.getName(), null);
+    }
+
+    /**
+     * Gets all loaded DataBlocks in a region which have a specific value for a key. Only the chunks overlapping
+     * the region are searched.
+     *
+     * @param key    The key, which must be indexed with {@link BlockDataManager#addIndex(String)}
+     * @param value  The value to search for, or null to find all DataBlocks which have the key
+     * @param region The region to search
+     * @return The loaded DataBlocks in the region with the value
+     */
+    public List<DataBlock> getIndexed(String key, Object value, CuboidRegion region) {
+        return dataBlocks.getSecondary().query(key, value, region.getWorld().getName(), DataBlockIndex.bounds(region));
+    }
+
+    /**
+     * Removes all data in a world, both loaded and stored, without loading any of it. The stored data is
+     * deleted off the server thread.
+     *
+     * @param world The world to remove data from
+     * @return A CompletableFuture for the removal task
+     * @throws UnsupportedOperationException If the backend cannot remove data in bulk
+     */
+    public CompletableFuture<Void> clearWorld(World world) {
+        if (!backend.supportsBulkRemove()) {
+            throw new UnsupportedOperationException("This backend cannot remove data in bulk");
+        }
+        String name = world.getName();
+        return bulkRemove(name, Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE,
+                () -> backend.removeWorld(name));
+    }
+
+    /**
+     * Removes all data in a region, both loaded and stored. If the region spans the full height of its world,
+     * the data for chunks entirely inside it is deleted without being loaded. The data for other chunks
+     * overlapping the region is loaded so that the DataBlocks inside the region can be removed, and saved
+     * again.
+     *
+     * @param region The region to remove data from
+     * @return A CompletableFuture for the removal task
+     */
+    public CompletableFuture<Void> clearRegion(CuboidRegion region) {
+        World world = region.getWorld();
+        String name = world.getName();
+        int[] bounds = DataBlockIndex.bounds(region);
+        int minX = bounds[0] >> 4, minZ = bounds[2] >> 4, maxX = bounds[3] >> 4, maxZ = bounds[5] >> 4;
+        // The chunks which are entirely inside the region
+        int innerMinX = (bounds[0] + 15) >> 4, innerMinZ = (bounds[2] + 15) >> 4;
+        int innerMaxX = ((bounds[3] + 1) >> 4) - 1, innerMaxZ = ((bounds[5] + 1) >> 4) - 1;
+        boolean bulk = backend.supportsBulkRemove() && innerMinX <= innerMaxX && innerMinZ <= innerMaxZ
+                && bounds[1] <= world.getMinHeight() && bounds[4] >= world.getMaxHeight() - 1;
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        if (bulk) {
+            futures.add(bulkRemove(name, innerMinX, innerMinZ, innerMaxX, innerMaxZ,
+                    () -> backend.removeArea(name, innerMinX, innerMinZ, innerMaxX, innerMaxZ)));
+        }
+        for (int cx = minX; cx <= maxX; cx++) {
+            for (int cz = minZ; cz <= maxZ; cz++) {
+                if (bulk && cx >= innerMinX && cx <= innerMaxX && cz >= innerMinZ && cz <= innerMaxZ) {
+                    continue;
+                }
+                futures.add(clear(new ChunkPosition(cx, cz, name), bounds));
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Removes the DataBlocks inside the given bounds from a chunk, loading it if needed and unloading it again
+     * afterwards if it was not loaded before
+     */
+    private CompletableFuture<Void> clear(ChunkPosition pos, int[] bounds) {
+        boolean loaded = dataBlocks.contains(pos);
+        return load(pos).thenCompose(v -> {
+            LoadedChunk chunk = dataBlocks.get(pos);
+            if (chunk == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            for (DataBlock db : chunk.getBlocks()) {
+                BlockPosition bPos = db.getBlockPosition();
+                if (DataBlockIndex.contains(bounds, bPos)) {
+                    chunk.remove(bPos);
+                    setModified(chunk, bPos);
+                }
+            }
+            return loaded ? CompletableFuture.completedFuture(null) : unload(pos);
+        });
+    }
+
+    /**
+     * Discards the loaded data for the chunks in an area and removes their stored data once pending saves have
+     * been handed to the backend. The removal is registered before anything is discarded, and loads in the area
+     * wait for it to finish, so that the old data can't be loaded again in between.
+     */
+    private CompletableFuture<Void> bulkRemove(String world, int minX, int minZ, int maxX, int maxZ,
+                                               Supplier<CompletableFuture<Void>> remove) {
+        PendingRemoval removal = new PendingRemoval(world, minX, minZ, maxX, maxZ);
+        removals.add(removal);
+        CompletableFuture<Void> future;
+        try {
+            synchronized (this) {
+                purge(world, minX, minZ, maxX, maxZ);
+            }
+            future = afterSaving(remove);
+        } catch (RuntimeException e) {
+            removals.remove(removal);
+            removal.done.completeExceptionally(e);
+            throw e;
+        }
+        future.whenComplete((v, e) -> {
+            removals.remove(removal);
+            if (e != null) {
+                removal.done.completeExceptionally(e);
+            } else {
+                removal.done.complete(null);
+            }
+        });
+        return removal.done;
+    }
+
+    /**
+     * @return A future for the save or bulk removal which has to reach the backend before the given chunk can be
+     * loaded, or null if there is none
+     */
+    private CompletableFuture<?> getPendingWrite(ChunkPosition pos) {
+        PendingRemoval removal = getPendingRemoval(pos);
+        CompletableFuture<?> save = writing.get(pos);
+        if (removal == null) {
+            return save;
+        }
+        return save == null ? removal.done : CompletableFuture.allOf(removal.done, save);
+    }
+
+    private PendingRemoval getPendingRemoval(ChunkPosition pos) {
+        for (PendingRemoval removal : removals) {
+            if (removal.contains(pos)) {
+                return removal;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Discards the loaded data for the chunks in an area, without saving it
+     */
+    private void purge(String world, int minX, int minZ, int maxX, int maxZ) {
+        List<ChunkPosition> positions = new ArrayList<>(loading.keySet());
+        dataBlocks.getChunks().forEach(c -> positions.add(c.getPosition()));
+        for (ChunkPosition pos : positions) {
+            if (!pos.getWorldName().equals(world) || pos.getX() < minX || pos.getX() > maxX
+                    || pos.getZ() < minZ || pos.getZ() > maxZ) {
+                continue;
+            }
+            CompletableFuture<Void> load = loading.remove(pos);
+            if (load != null) {
+                load.cancel(true);
+            }
+            dataBlocks.remove(pos);
+            modified.remove(pos);
+            synchronized (pendingUnloads) {
+                pendingUnloads.remove(pos);
+            }
+        }
+    }
+
+    private LoadedChunk decode(ChunkPosition pos, byte[] data) {
+        LoadedChunk chunk = new LoadedChunk(pos);
+        if (data != null) {
+            int deltas = ChunkDataCodec.decode(pos, data, (bPos, map) -> chunk.put(createDataBlock(map, bPos, pos.getWorldName())));
+            // Legacy JSON rows are left unmarked so that the next save replaces them with a full frame
+            if (deltas >= 0) {
+                chunk.setStored(deltas);
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Gets a DataBlock for the given Block. If the data for the Block's chunk is not loaded yet, this will wait
+     * for it to load, unless cache-only mode is enabled and create is false.
      *
      * @param block  The Block data will be attached to
      * @param create Whether to create a new DataBlock if one does not exist already
      * @return The DataBlock, or null
+     * @see BlockDataManager#setCacheOnly(boolean)
      */
     public DataBlock getDataBlock(Block block, boolean create) {
-        return unwrap(getDataBlockAsync(block, create));
+        LoadedChunk chunk = getChunk(block.getWorld().getName(), block.getX() >> 4, block.getZ() >> 4, create || !cacheOnly);
+        return chunk == null ? null : getDataBlock(chunk, block, create);
+    }
+
+    private LoadedChunk getChunk(String world, int cx, int cz, boolean wait) {
+        LoadedChunk chunk = dataBlocks.get(world, cx, cz);
+        if (chunk != null) {
+            cacheHits.increment();
+            return chunk;
+        }
+        cacheMisses.increment();
+        ChunkPosition pos = new ChunkPosition(cx, cz, world);
+        CompletableFuture<Void> load = load(pos);
+        if (!load.isDone()) {
+            syncMisses.increment();
+            if (!wait) {
+                return null;
+            }
+            unwrap(load);
+        }
+        return dataBlocks.get(pos);
+    }
+
+    /**
+     * Gets the DataBlocks which already exist for any of the given Blocks, without creating new ones. The
+     * index is only checked once per chunk, so this is much faster than calling
+     * {@link BlockDataManager#getDataBlock(Block, boolean)} for each Block when there are many of them.
+     *
+     * @param blocks The Blocks to get the DataBlocks for
+     * @return The DataBlocks which exist for the given Blocks
+     */
+    public List<DataBlock> getDataBlocks(Collection<Block> blocks) {
+        List<DataBlock> found = new ArrayList<>();
+        ChunkCache chunks = new ChunkCache(true, !cacheOnly);
+        for (Block block : blocks) {
+            LoadedChunk chunk = chunks.get(block.getWorld().getName(), block.getX() >> 4, block.getZ() >> 4);
+            if (chunk == null) {
+                continue;
+            }
+            DataBlock db = chunk.get(block.getX(), block.getY(), block.getZ());
+            if (db != null) {
+                found.add(db);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Removes many DataBlocks and their data from this BlockDataManager
+     *
+     * @param dbs The DataBlocks to remove
+     */
+    public void removeAll(Collection<DataBlock> dbs) {
+        ChunkCache chunks = new ChunkCache(false, false);
+        for (DataBlock db : dbs) {
+            BlockPosition bPos = db.getBlockPosition();
+            LoadedChunk chunk = chunks.get(db.getWorldName(), bPos.getX() >> 4, bPos.getZ() >> 4);
+            if (chunk == null) {
+                setModified(db.getChunkPosition());
+                continue;
+            }
+            chunk.remove(bPos);
+            setModified(chunk, bPos);
+        }
+    }
+
+    /**
+     * Moves the data of many DataBlocks to new locations at once. All of the DataBlocks are removed before any
+     * data is placed at its destination, so DataBlocks may be moved onto each other's old positions.
+     *
+     * @param destinations The DataBlocks to move, mapped to the Blocks to move their data to
+     */
+    void moveAll(Map<DataBlock, Block> destinations) {
+        removeAll(destinations.keySet());
+        ChunkCache chunks = new ChunkCache(true, true);
+        destinations.forEach((db, block) -> {
+            String world = block.getWorld().getName();
+            LoadedChunk chunk = chunks.get(world, block.getX() >> 4, block.getZ() >> 4);
+            if (chunk == null) {
+                return;
+            }
+            DataBlock moved = new DataBlock(db.data, new BlockPosition(block), world, this);
+            moved.copyFrom(db);
+            chunk.put(moved);
+            setModified(chunk, moved.getBlockPosition());
+        });
+    }
+
+    /**
+     * Moves all of the DataBlocks in a region, rotating their positions around the start of the region and then
+     * offsetting them. The chunks the DataBlocks are moved from and to are loaded once each, and the DataBlocks
+     * are moved in a single pass grouped by the chunk they are moved to. All of the DataBlocks are removed
+     * before any are placed, so the destination may overlap the region.
+     *
+     * @param region  The region to move DataBlocks from
+     * @param offset  The offset to move the DataBlocks by
+     * @param rotator The Rotator to rotate the positions of the DataBlocks with relative to the start of the region
+     * @return A CompletableFuture with the number of DataBlocks moved
+     */
+    public CompletableFuture<Integer> moveRegion(CuboidRegion region, Vector offset, Rotator rotator) {
+        return transform(region, offset, rotator, true);
+    }
+
+    /**
+     * Copies all of the DataBlocks in a region, rotating their positions around the start of the region and
+     * then offsetting them. Works like {@link BlockDataManager#moveRegion(CuboidRegion, Vector, Rotator)}, but
+     * leaves the original DataBlocks in place.
+     *
+     * @param region  The region to copy DataBlocks from
+     * @param offset  The offset to copy the DataBlocks by
+     * @param rotator The Rotator to rotate the positions of the DataBlocks with relative to the start of the region
+     * @return A CompletableFuture with the number of DataBlocks copied
+     */
+    public CompletableFuture<Integer> copyRegion(CuboidRegion region, Vector offset, Rotator rotator) {
+        return transform(region, offset, rotator, false);
+    }
+
+    private CompletableFuture<Integer> transform(CuboidRegion region, Vector offset, Rotator rotator, boolean move) {
+        String world = region.getWorld().getName();
+        int[] bounds = DataBlockIndex.bounds(region);
+        Rotator rot = rotator.clone();
+        List<ChunkPosition> sources = new ArrayList<>();
+        for (int cx = bounds[0] >> 4; cx <= bounds[3] >> 4; cx++) {
+            for (int cz = bounds[2] >> 4; cz <= bounds[5] >> 4; cz++) {
+                sources.add(new ChunkPosition(cx, cz, world));
+            }
+        }
+        // The chunks which are only loaded for this, and should be unloaded again afterwards
+        Set<ChunkPosition> temporary = Collections.synchronizedSet(new HashSet<>());
+        CompletableFuture<Integer> placed = loadChunks(sources, temporary).thenCompose(v -> {
+            List<DataBlock> found = new ArrayList<>();
+            for (ChunkPosition pos : sources) {
+                LoadedChunk chunk = dataBlocks.get(pos);
+                if (chunk == null) {
+                    continue;
+                }
+                chunk.getBlocks().stream().filter(db -> DataBlockIndex.contains(bounds, db.getBlockPosition())).forEach(found::add);
+            }
+            Map<ChunkPosition, Map<BlockPosition, DataBlock>> destinations = new LinkedHashMap<>();
+            for (DataBlock db : found) {
+                BlockPosition bPos = db.getBlockPosition();
+                rot.setLocation(bPos.getX() - bounds[0], bPos.getZ() - bounds[2]);
+                BlockPosition dest = new BlockPosition(bounds[0] + rot.getRotatedBlockX() + offset.getBlockX(),
+                        bPos.getY() + offset.getBlockY(), bounds[2] + rot.getRotatedBlockZ() + offset.getBlockZ());
+                destinations.computeIfAbsent(new ChunkPosition(dest, world), k -> new LinkedHashMap<>()).put(dest, db);
+            }
+            // Loads complete on backend threads, so the DataBlocks are placed on the server thread
+            return loadChunks(destinations.keySet(), temporary).thenCompose(w -> onServerThread(() -> {
+                if (move) {
+                    removeAll(found);
+                }
+                int[] count = {0};
+                destinations.forEach((pos, blocks) -> {
+                    LoadedChunk chunk = dataBlocks.get(pos);
+                    if (chunk == null) {
+                        return;
+                    }
+                    blocks.forEach((dest, db) -> {
+                        DataBlock copy = new DataBlock(db.data, dest, world, this);
+                        copy.copyFrom(move ? db : db.snapshot());
+                        chunk.put(copy);
+                        setModified(chunk, dest);
+                        count[0]++;
+                    });
+                });
+                return CompletableFuture.completedFuture(count[0]);
+            }));
+        });
+        return placed.handle((count, e) -> onServerThread(() -> unloadUnused(temporary)).thenApply(v -> {
+            if (e != null) {
+                throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+            }
+            return count;
+        })).thenCompose(f -> f);
+    }
+
+    /**
+     * Loads the data for chunks, recording the ones which were not already loaded or loading
+     */
+    private CompletableFuture<Void> loadChunks(Collection<ChunkPosition> positions, Set<ChunkPosition> loaded) {
+        positions.stream().filter(pos -> !dataBlocks.contains(pos) && !loading.containsKey(pos)).forEach(loaded::add);
+        return CompletableFuture.allOf(positions.stream().map(this::load).toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Unloads the data for chunks which were loaded without their chunk being loaded, unless the chunk has
+     * loaded since
+     */
+    private CompletableFuture<Void> unloadUnused(Collection<ChunkPosition> positions) {
+        List<ChunkPosition> list;
+        synchronized (positions) {
+            list = new ArrayList<>(positions);
+        }
+        return CompletableFuture.allOf(list.stream().filter(pos -> !isChunkLoaded(pos)).map(this::unload).toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Runs a task on the server thread, immediately if this is already the server thread
+     */
+    private <T> CompletableFuture<T> onServerThread(Supplier<CompletableFuture<T>> task) {
+        if (Bukkit.isPrimaryThread()) {
+            return task.get();
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Task.syncDelayed(plugin, () -> {
+            try {
+                task.get().whenComplete((v, e) -> {
+                    if (e != null) {
+                        future.completeExceptionally(e);
+                    } else {
+                        future.complete(v);
+                    }
+                });
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Gets a DataBlock for the given Block only if the data for its chunk is already loaded. Never waits for
+     * data to load and never creates a DataBlock.
+     *
+     * @param block The Block the data is attached to
+     * @return The DataBlock, or null if it does not exist or the data for its chunk is not loaded
+     */
+    public DataBlock getLoadedDataBlock(Block block) {
+        LoadedChunk chunk = dataBlocks.get(block.getWorld().getName(), block.getX() >> 4, block.getZ() >> 4);
+        return chunk == null ? null : chunk.get(block.getX(), block.getY(), block.getZ());
+    }
+
+    /**
+     * Sets whether this BlockDataManager is in cache-only mode. In cache-only mode, calls to
+     * {@link BlockDataManager#getDataBlock(Block, boolean)} with create set to false will never wait for data to
+     * load. If the data for the Block's chunk is not loaded, they will start loading it in the background and
+     * return null. Use {@link BlockDataManager#prefetch(Location, int)} or
+     * {@link BlockDataManager#setPrefetchRadius(int)} to make sure data is loaded before it is needed.
+     *
+     * @param cacheOnly Whether to enable cache-only mode
+     */
+    public void setCacheOnly(boolean cacheOnly) {
+        this.cacheOnly = cacheOnly;
+    }
+
+    /**
+     * @return Whether this BlockDataManager is in cache-only mode
+     */
+    public boolean isCacheOnly() {
+        return cacheOnly;
+    }
+
+    /**
+     * @return The number of synchronous lookups which found the data for their chunk still loading, and either
+     * waited for it or, in cache-only mode, returned null instead of waiting
+     */
+    public long getSyncMisses() {
+        return syncMisses.sum();
     }
 
     /**
-     * Loads all DataBlocks stored by this BlockDataManager. Not supported for PDC.
+     * Limits the number of DataBlocks kept in memory. When more than this many are loaded, chunks which have
+     * not been accessed recently and are not loaded in their world are evicted, least recently used first,
+     * saving them first if they were modified. Evicted chunks are loaded again if they are accessed later.
+     * DataBlocks in an evicted chunk should not be modified after it has been evicted, so references to
+     * DataBlocks in chunks which are not loaded in the world should not be held onto when this is enabled.
+     *
+     * @param maxBlocks The maximum number of DataBlocks to keep loaded, or -1 for no limit
+     */
+    public synchronized void setCacheLimit(long maxBlocks) {
+        long previous = cacheLimit;
+        cacheLimit = maxBlocks;
+        if (maxBlocks < 0) {
+            clock.clear();
+            return;
+        }
+        if (previous < 0) {
+            clock.addAll(dataBlocks.getChunks());
+        }
+        if (dataBlocks.getBlockCount() > maxBlocks) {
+            requestEviction();
+        }
+    }
+
+    /**
+     * @return The maximum number of DataBlocks kept in memory, or -1 if there is no limit
+     */
+    public long getCacheLimit() {
+        return cacheLimit;
+    }
+
+    /**
+     * @return The number of lookups which found the data for their chunk already loaded
+     */
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @return The number of lookups which had to load the data for their chunk
+     */
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * @return The fraction of lookups which found the data for their chunk already loaded
+     */
+    public double getHitRate() {
+        long hits = cacheHits.sum();
+        long total = hits + cacheMisses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * @return The number of chunks which have been evicted to stay within the cache limit
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return The number of DataBlocks currently loaded
+     */
+    public long getLoadedCount() {
+        return dataBlocks.getBlockCount();
+    }
+
+    /**
+     * Sets the metrics to report to. Gauges for the state of this BlockDataManager and its backend are
+     * registered immediately, and latencies for loading and saving chunks are recorded from then on.
+     *
+     * The gauges are removed from the metrics previously reported to.
+     *
+     * @param metrics The metrics, or {@link BlockDataMetrics#NONE} to stop reporting
+     */
+    public void setMetrics(BlockDataMetrics metrics) {
+        Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+        gauges.put("chunks.loaded", dataBlocks::getChunkCount);
+        gauges.put("blocks.loaded", dataBlocks::getBlockCount);
+        gauges.put("chunks.modified", modified::size);
+        gauges.put("chunks.loading", loading::size);
+        gauges.put("chunks.unloading", () -> {
+            synchronized (pendingUnloads) {
+                return pendingUnloads.size();
+            }
+        });
+        gauges.put("cache.hits", cacheHits::sum);
+        gauges.put("cache.misses", cacheMisses::sum);
+        gauges.put("cache.syncmisses", syncMisses::sum);
+        gauges.put("cache.evictions", evictions::sum);
+        gauges.put("cache.avoidedreloads", avoidedReloads::sum);
+        gauges.keySet().forEach(this.metrics::removeGauge);
+        this.metrics = metrics;
+        gauges.forEach(metrics::gauge);
+        backend.setMetrics(metrics);
+    }
+
+    /**
+     * @return The metrics this BlockDataManager reports to
+     */
+    public BlockDataMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Starts loading the data for all chunks within a radius of a Location which are loaded in the world,
+     * without waiting for them
+     *
+     * @param loc    The center Location
+     * @param radius The radius, in chunks
+     * @return A CompletableFuture which completes when all of the chunks have been loaded
+     */
+    public CompletableFuture<Void> prefetch(Location loc, int radius) {
+        World world = loc.getWorld();
+        String worldName = world.getName();
+        int centerX = loc.getBlockX() >> 4;
+        int centerZ = loc.getBlockZ() >> 4;
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        for (int cx = centerX - radius; cx <= centerX + radius; cx++) {
+            for (int cz = centerZ - radius; cz <= centerZ + radius; cz++) {
+                if (dataBlocks.get(worldName, cx, cz) != null || !world.isChunkLoaded(cx, cz)) {
+                    continue;
+                }
+                futures.add(load(new ChunkPosition(cx, cz, worldName)));
+            }
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Sets the radius around each online player within which the data for loaded chunks will be prefetched
+     * every second, so that lookups near players do not need to wait for data to load
+     *
+     * @param radius The radius, in chunks, or -1 to disable prefetching
+     */
+    public void setPrefetchRadius(int radius) {
+        if (prefetchTask != null) {
+            prefetchTask.cancel();
+            prefetchTask = null;
+        }
+        if (radius < 0) {
+            return;
+        }
+        prefetchTask = Task.syncRepeating(plugin, () -> {
+            Bukkit.getOnlinePlayers().forEach(p -> prefetch(p.getLocation(), radius));
+        }, 20, 20);
+    }
+
+    /**
+     * Loads all DataBlocks stored by this BlockDataManager. Not supported for PDC. Data is read from the backend
+     * one page of chunks at a time. If a cache limit is set, reading stops once it is reached, and the rest of
+     * the chunks are loaded when they are accessed.
      *
      * @return A CompletableFuture for the loading task.
      */
     public CompletableFuture<Void> loadAll() {
         save();
-        loading.values().forEach(f -> f.cancel(true));
-        loading.clear();
-        dataBlocks.clear();
-        return backend.loadAll().thenApply(chunkMap -> {
-            chunkMap.forEach((cPos, data) -> {
-                JSONMap chunkData = JSONParser.parseMap(data);
-                dataBlocks.computeIfAbsent(cPos, k -> new HashMap<>());
-                chunkData.keySet().forEach(bPos -> load(bPos, chunkData.getMap(bPos), cPos));
-            });
-            return null;
-        });
+        synchronized (this) {
+            loading.values().forEach(f -> f.cancel(true));
+            loading.clear();
+            dataBlocks.clear();
+            clock.clear();
+            synchronized (pendingUnloads) {
+                pendingUnloads.clear();
+            }
+        }
+        CompletableFuture<Map<ChunkPosition, byte[]>> first;
+        try {
+            first = backend.loadPage(null, LOAD_PAGE_SIZE);
+        } catch (UnsupportedOperationException e) {
+            // Backends which cannot page can still load everything at once
+            return backend.loadAll().thenAccept(this::publishAll);
+        }
+        return first.thenCompose(this::loadPages);
+    }
+
+    private CompletableFuture<Void> loadPages(Map<ChunkPosition, byte[]> page) {
+        if (!publishAll(page) || page.size() < LOAD_PAGE_SIZE) {
+            return CompletableFuture.completedFuture(null);
+        }
+        ChunkPosition last = null;
+        for (ChunkPosition pos : page.keySet()) {
+            last = pos;
+        }
+        return backend.loadPage(last, LOAD_PAGE_SIZE).thenCompose(this::loadPages);
+    }
+
+    /**
+     * @return False if the cache limit was reached before all of the chunks were published
+     */
+    private boolean publishAll(Map<ChunkPosition, byte[]> chunks) {
+        for (Map.Entry<ChunkPosition, byte[]> entry : chunks.entrySet()) {
+            if (cacheLimit >= 0 && dataBlocks.getBlockCount() >= cacheLimit) {
+                return false;
+            }
+            ChunkPosition pos = entry.getKey();
+            // Chunks being saved or removed in bulk may have been read before the write reached the backend
+            if (getPendingWrite(pos) != null) {
+                continue;
+            }
+            LoadedChunk chunk = decode(pos, entry.getValue());
+            synchronized (this) {
+                // A chunk which was loaded on its own in the meantime is at least as new as the page
+                if (!dataBlocks.contains(pos) && !loading.containsKey(pos)) {
+                    publish(chunk);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Streams all DataBlocks stored in the backend without loading them into this BlockDataManager. Data is
+     * read one page of chunks at a time, with the next page being read while the current one is consumed, and
+     * each chunk is only decoded once the stream reaches it. Changes which have not been saved yet are not
+     * included. The DataBlocks are detached copies which do not belong to this BlockDataManager, and changes
+     * made to them will not be saved or affect loaded DataBlocks. Not supported for PDC.
+     * <p>
+     * Consuming the stream waits for data to be read, so it should not be consumed on the main thread.
+     *
+     * @param pageSize The number of chunks to read from the backend at a time
+     * @return A Stream of all stored DataBlocks
+     */
+    public Stream<DataBlock> streamStored(int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be positive");
+        }
+        Iterator<List<DataBlock>> chunks = new StoredChunkIterator(pageSize);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(chunks, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .flatMap(List::stream);
+    }
+
+    /**
+     * Streams all DataBlocks stored in the backend without loading them into this BlockDataManager, reading
+     * 256 chunks at a time
+     *
+     * @return A Stream of all stored DataBlocks
+     * @see BlockDataManager#streamStored(int)
+     */
+    public Stream<DataBlock> streamStored() {
+        return streamStored(256);
     }
 
     /**
      * @return All DataBlocks currently loaded in this BlockDataManager
      */
     public Set<DataBlock> getAllLoaded() {
-        return dataBlocks.values().stream().flatMap(m -> m.values().stream()).collect(Collectors.toSet());
+        return dataBlocks.getChunks().stream().flatMap(c -> c.getBlocks().stream()).collect(Collectors.toSet());
+    }
+
+    /**
+     * Iterates the chunks stored in the backend page by page, requesting each page before the previous one
+     * has been consumed
+     */
+    private class StoredChunkIterator implements Iterator<List<DataBlock>> {
+
+        private int pageSize;
+        private Iterator<Map.Entry<ChunkPosition, byte[]>> page;
+        private CompletableFuture<Map<ChunkPosition, byte[]>> next;
+
+        public StoredChunkIterator(int pageSize) {
+            this.pageSize = pageSize;
+            next = backend.loadPage(null, pageSize);
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (page == null || !page.hasNext()) {
+                if (next == null) {
+                    return false;
+                }
+                Map<ChunkPosition, byte[]> map = unwrap(next);
+                next = null;
+                if (map.size() >= pageSize) {
+                    ChunkPosition last = null;
+                    for (ChunkPosition pos : map.keySet()) {
+                        last = pos;
+                    }
+                    next = backend.loadPage(last, pageSize);
+                }
+                page = map.entrySet().iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public List<DataBlock> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<ChunkPosition, byte[]> entry = page.next();
+            page.remove();
+            ChunkPosition pos = entry.getKey();
+            List<DataBlock> blocks = new ArrayList<>();
+            if (entry.getValue() != null) {
+                ChunkDataCodec.decode(pos, entry.getValue(), (bPos, map) -> blocks.add(createDataBlock(map, bPos, pos.getWorldName(), null)));
+            }
+            return blocks;
+        }
+
+    }
+
+    /**
+     * An area whose stored data is being removed in bulk
+     */
+    private static class PendingRemoval {
+
+        private String world;
+        private int minX;
+        private int minZ;
+        private int maxX;
+        private int maxZ;
+        private CompletableFuture<Void> done = new CompletableFuture<>();
+
+        public PendingRemoval(String world, int minX, int minZ, int maxX, int maxZ) {
+            this.world = world;
+            this.minX = minX;
+            this.minZ = minZ;
+            this.maxX = maxX;
+            this.maxZ = maxZ;
+        }
+
+        public boolean contains(ChunkPosition pos) {
+            return pos.getWorldName().equals(world) && pos.getX() >= minX && pos.getX() <= maxX
+                    && pos.getZ() >= minZ && pos.getZ() <= maxZ;
+        }
+
+    }
+
+    /**
+     * Caches the chunks looked up during a bulk operation so that each one is only looked up in the index once
+     */
+    private class ChunkCache {
+
+        private boolean load;
+        private boolean wait;
+        private String world;
+        private LongObjectMap<LoadedChunk> chunks = new LongObjectMap<>();
+        private LoadedChunk missing = new LoadedChunk(null);
+
+        public ChunkCache(boolean load, boolean wait) {
+            this.load = load;
+            this.wait = wait;
+        }
+
+        public LoadedChunk get(String world, int cx, int cz) {
+            if (!world.equals(this.world)) {
+                this.world = world;
+                chunks.clear();
+            }
+            long key = ((long) cx << 32) | (cz & 0xFFFFFFFFL);
+            LoadedChunk chunk = chunks.get(key);
+            if (chunk == null) {
+                chunk = load ? getChunk(world, cx, cz, wait) : dataBlocks.get(world, cx, cz);
+                chunks.put(key, chunk == null ? missing : chunk);
+            }
+            return chunk == missing ? null : chunk;
+        }
+
     }
 
     private <T> T unwrap(CompletableFuture<T> future) {
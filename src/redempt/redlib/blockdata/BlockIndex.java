@@ -0,0 +1,121 @@
+package redempt.redlib.blockdata;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Indexes loaded chunks by world name and chunk coordinates packed into a long, so that looking up the chunk
+ * containing a block does not need to allocate a ChunkPosition
+ *
+ * @author Redempt
+ */
+class BlockIndex {
+
+    private static long key(int cx, int cz) {
+        return ((long) cx << 32) | (cz & 0xFFFFFFFFL);
+    }
+
+    private Map<String, LongObjectMap<LoadedChunk>> worlds = new ConcurrentHashMap<>();
+    private AtomicLong blockCount = new AtomicLong();
+    private AtomicLong chunkCount = new AtomicLong();
+    private DataBlockIndex secondary = new DataBlockIndex();
+
+    /**
+     * @return The secondary indexes over the DataBlocks in the loaded chunks
+     */
+    public DataBlockIndex getSecondary() {
+        return secondary;
+    }
+
+    /**
+     * @return The number of DataBlocks in all loaded chunks
+     */
+    public long getBlockCount() {
+        return blockCount.get();
+    }
+
+    /**
+     * @return The number of loaded chunks
+     */
+    public long getChunkCount() {
+        return chunkCount.get();
+    }
+
+    public LoadedChunk get(String world, int cx, int cz) {
+        LongObjectMap<LoadedChunk> chunks = worlds.get(world);
+        if (chunks == null) {
+            return null;
+        }
+        synchronized (chunks) {
+            return chunks.get(key(cx, cz));
+        }
+    }
+
+    public LoadedChunk get(ChunkPosition pos) {
+        return get(pos.getWorldName(), pos.getX(), pos.getZ());
+    }
+
+    public boolean contains(ChunkPosition pos) {
+        return get(pos) != null;
+    }
+
+    public void put(LoadedChunk chunk) {
+        ChunkPosition pos = chunk.getPosition();
+        LongObjectMap<LoadedChunk> chunks = worlds.computeIfAbsent(pos.getWorldName(), k -> new LongObjectMap<>());
+        LoadedChunk old;
+        synchronized (chunks) {
+            old = chunks.put(key(pos.getX(), pos.getZ()), chunk);
+        }
+        chunk.attach(blockCount, secondary);
+        if (old != null) {
+            old.detach();
+        } else {
+            chunkCount.incrementAndGet();
+        }
+    }
+
+    public LoadedChunk remove(ChunkPosition pos) {
+        LongObjectMap<LoadedChunk> chunks = worlds.get(pos.getWorldName());
+        if (chunks == null) {
+            return null;
+        }
+        LoadedChunk removed;
+        synchronized (chunks) {
+            removed = chunks.remove(key(pos.getX(), pos.getZ()));
+        }
+        if (removed != null) {
+            removed.detach();
+            chunkCount.decrementAndGet();
+        }
+        return removed;
+    }
+
+    /**
+     * @return A snapshot of all loaded chunks
+     */
+    public List<LoadedChunk> getChunks() {
+        List<LoadedChunk> list = new ArrayList<>();
+        worlds.values().forEach(chunks -> {
+            synchronized (chunks) {
+                chunks.forEach(list::add);
+            }
+        });
+        return list;
+    }
+
+    public void clear() {
+        worlds.values().forEach(chunks -> {
+            synchronized (chunks) {
+                chunks.forEach(c -> {
+                    c.detach();
+                    chunkCount.decrementAndGet();
+                });
+                chunks.clear();
+            }
+        });
+    }
+
+}
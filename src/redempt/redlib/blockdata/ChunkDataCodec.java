@@ -0,0 +1,591 @@
+package redempt.redlib.blockdata;
+
+import redempt.redlib.json.JSONList;
+import redempt.redlib.json.JSONMap;
+import redempt.redlib.json.JSONParser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Encodes and decodes the DataBlocks in a chunk to and from a compact binary format. Block positions are
+ * packed relative to the chunk, keys are written once per chunk in a key table and referenced by index, and
+ * values are written with a type tag. Data stored as JSON by older versions is still decoded.
+ * <p>
+ * Encoded data is a sequence of frames. A full frame contains every DataBlock in the chunk, and a delta frame
+ * contains only the DataBlocks which were changed or removed since the previous frame, so changes can be
+ * saved by appending a delta frame to the stored data instead of rewriting all of it.
+ * <p>
+ * Frames can be compressed with {@link ChunkDataCodec#compress(byte[], int)}, which wraps them in a frame
+ * starting with a different header byte containing the Deflate-compressed frame. Compressed and uncompressed
+ * frames can be mixed freely in the stored data.
+ *
+ * @author Redempt
+ */
+class ChunkDataCodec {
+
+    static final byte MAGIC = (byte) 0xB7;
+    static final byte VERSION = 1;
+    static final byte DELTA = 2;
+    static final byte COMPRESSED = (byte) 0xB8;
+
+    /**
+     * The preset dictionaries compressed frames can use, indexed by the id stored in the frame. A dictionary must
+     * never change once data has been compressed with it, so new dictionaries must be added with a new id.
+     */
+    private static final byte[][] DICTIONARIES = {null, dictionary(
+            "custom-type", "__schema", "owner", "uuid", "type", "name", "data", "level", "amount", "id")};
+    private static final byte DICTIONARY = 1;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_INT = 2;
+    private static final byte TAG_LONG = 3;
+    private static final byte TAG_DOUBLE = 4;
+    private static final byte TAG_TRUE = 5;
+    private static final byte TAG_FALSE = 6;
+    private static final byte TAG_LIST = 7;
+    private static final byte TAG_MAP = 8;
+
+    /**
+     * Packs a block position into an int relative to its chunk
+     *
+     * @param x The block X
+     * @param y The block Y
+     * @param z The block Z
+     * @return The packed position
+     */
+    static int pack(int x, int y, int z) {
+        return (y << 8) | ((x & 15) << 4) | (z & 15);
+    }
+
+    /**
+     * Unpacks a position packed with {@link ChunkDataCodec#pack(int, int, int)}
+     *
+     * @param pos    The chunk the block is in
+     * @param packed The packed position
+     * @return The absolute BlockPosition
+     */
+    static BlockPosition unpack(ChunkPosition pos, int packed) {
+        return new BlockPosition((pos.getX() << 4) | ((packed >> 4) & 15), packed >> 8, (pos.getZ() << 4) | (packed & 15));
+    }
+
+    /**
+     * Encodes the DataBlocks in a chunk
+     *
+     * @param blocks The DataBlocks in the chunk
+     * @return The encoded data
+     */
+    static byte[] encode(Collection<DataBlock> blocks) {
+        return encodeFrame(VERSION, blocks, null);
+    }
+
+    /**
+     * Encodes a delta frame, which can be appended to previously encoded data for the same chunk
+     *
+     * @param changed The DataBlocks which were added or changed
+     * @param removed The packed positions of the DataBlocks which were removed
+     * @return The encoded delta frame
+     */
+    static byte[] encodeDelta(Collection<DataBlock> changed, int[] removed) {
+        return encodeFrame(DELTA, changed, removed);
+    }
+
+    private static byte[] encodeFrame(byte type, Collection<DataBlock> blocks, int[] removed) {
+        Writer body = new Writer(blocks.size() * 32);
+        Map<String, Integer> keys = new HashMap<>();
+        List<String> keyList = new ArrayList<>();
+        body.varInt(blocks.size());
+        blocks.forEach(db -> {
+            BlockPosition pos = db.getBlockPosition();
+            body.varInt(zigZag(pack(pos.getX(), pos.getY(), pos.getZ())));
+            writeBlock(body, db, keys, keyList);
+        });
+        if (removed != null) {
+            body.varInt(removed.length);
+            for (int packed : removed) {
+                body.varInt(zigZag(packed));
+            }
+        }
+        Writer out = new Writer(body.size + keyList.size() * 16 + 8);
+        out.write(MAGIC);
+        out.write(type);
+        out.varInt(keyList.size());
+        keyList.forEach(out::string);
+        out.write(body.bytes, 0, body.size);
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes the DataBlocks in a chunk, accepting both the binary format and the legacy JSON format. Delta
+     * frames are applied in order on top of the frames before them.
+     *
+     * @param pos      The position of the chunk the data belongs to
+     * @param data     The encoded data
+     * @param consumer A callback which will be passed the position and data of each block
+     * @return The number of delta frames after the last full frame, or -1 if the data was in the legacy JSON
+     * format, in which case it must be rewritten in full before deltas can be appended to it
+     * @throws IllegalArgumentException If the data is malformed, or binary frames follow legacy JSON data
+     */
+    static int decode(ChunkPosition pos, byte[] data, BiConsumer<BlockPosition, JSONMap> consumer) {
+        if (data.length == 0) {
+            return 0;
+        }
+        if (data[0] != MAGIC && data[0] != COMPRESSED) {
+            int length = jsonLength(data);
+            for (int i = length; i < data.length; i++) {
+                if (!Character.isWhitespace(data[i])) {
+                    throw new IllegalArgumentException("Unexpected data at position " + i + " after legacy JSON block data");
+                }
+            }
+            decodeJSON(new String(data, 0, length, StandardCharsets.UTF_8), consumer);
+            return -1;
+        }
+        IntObjectMap<JSONMap> blocks = new IntObjectMap<>();
+        int deltas = readFrames(data, blocks, 0);
+        blocks.forEachKey(packed -> consumer.accept(unpack(pos, packed), blocks.get(packed)));
+        return deltas;
+    }
+
+    private static int readFrames(byte[] data, IntObjectMap<JSONMap> blocks, int deltas) {
+        Reader in = new Reader(data);
+        while (in.pos < data.length) {
+            int start = in.pos;
+            byte header = in.read();
+            if (header == COMPRESSED) {
+                deltas = readFrames(inflate(in), blocks, deltas);
+                continue;
+            }
+            if (header != MAGIC) {
+                throw new IllegalArgumentException("Invalid block data frame at position " + start);
+            }
+            byte type = in.read();
+            if (type == VERSION) {
+                blocks.clear();
+                deltas = 0;
+            } else if (type == DELTA) {
+                deltas++;
+            } else {
+                throw new IllegalArgumentException("Unsupported block data format version " + type);
+            }
+            String[] keys = new String[in.varInt()];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = in.string();
+            }
+            int count = in.varInt();
+            for (int i = 0; i < count; i++) {
+                int packed = unZigZag(in.varInt());
+                blocks.put(packed, readMap(in, keys));
+            }
+            if (type == DELTA) {
+                int removed = in.varInt();
+                for (int i = 0; i < removed; i++) {
+                    blocks.remove(unZigZag(in.varInt()));
+                }
+            }
+        }
+        return deltas;
+    }
+
+    /**
+     * Compresses encoded frames if they are large enough for it to be worthwhile
+     *
+     * @param data      The encoded frames
+     * @param threshold The minimum size in bytes to compress, or -1 to never compress
+     * @return The compressed frame, or the data unchanged if it was not compressed
+     */
+    static byte[] compress(byte[] data, int threshold) {
+        if (data == null || threshold < 0 || data.length < threshold) {
+            return data;
+        }
+        Deflater deflater = new Deflater();
+        deflater.setDictionary(DICTIONARIES[DICTIONARY]);
+        deflater.setInput(data);
+        deflater.finish();
+        Writer compressed = new Writer(data.length / 2);
+        while (!deflater.finished()) {
+            compressed.ensureCapacity(256);
+            compressed.size += deflater.deflate(compressed.bytes, compressed.size, compressed.bytes.length - compressed.size);
+        }
+        deflater.end();
+        if (compressed.size + 8 >= data.length) {
+            return data;
+        }
+        Writer out = new Writer(compressed.size + 12);
+        out.write(COMPRESSED);
+        out.write(DICTIONARY);
+        out.varInt(data.length);
+        out.varInt(compressed.size);
+        out.write(compressed.bytes, 0, compressed.size);
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(Reader in) {
+        int id = in.read();
+        if (id <= 0 || id >= DICTIONARIES.length) {
+            throw new IllegalArgumentException("Unknown block data compression dictionary " + id);
+        }
+        byte[] data = new byte[in.varInt()];
+        int length = in.varInt();
+        if (length < 0 || in.pos + length > in.bytes.length) {
+            throw new IllegalArgumentException("Unexpected end of block data");
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(in.bytes, in.pos, length);
+            int size = 0;
+            while (size < data.length) {
+                int read = inflater.inflate(data, size, data.length - size);
+                if (read == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(DICTIONARIES[id]);
+                    } else if (inflater.finished() || inflater.needsInput()) {
+                        throw new IllegalArgumentException("Truncated compressed block data");
+                    }
+                }
+                size += read;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Malformed compressed block data", e);
+        } finally {
+            inflater.end();
+        }
+        in.pos += length;
+        return data;
+    }
+
+    private static byte[] dictionary(String... keys) {
+        Writer out = new Writer(256);
+        out.write(MAGIC);
+        out.write(VERSION);
+        for (String key : keys) {
+            out.string(key);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Finds where the top-level JSON object at the start of the data ends. Multi-byte UTF-8 characters never
+     * contain ASCII bytes, so the data can be scanned without decoding it.
+     */
+    private static int jsonLength(byte[] data) {
+        int depth = 0;
+        boolean string = false;
+        for (int i = 0; i < data.length; i++) {
+            byte b = data[i];
+            if (string) {
+                if (b == '\\') {
+                    i++;
+                } else if (b == '"') {
+                    string = false;
+                }
+                continue;
+            }
+            if (b == '"') {
+                string = true;
+            } else if (b == '{' || b == '[') {
+                depth++;
+            } else if ((b == '}' || b == ']') && --depth == 0) {
+                return i + 1;
+            }
+        }
+        return data.length;
+    }
+
+    private static void decodeJSON(String json, BiConsumer<BlockPosition, JSONMap> consumer) {
+        JSONMap map = JSONParser.parseMap(json);
+        map.forEach((key, value) -> {
+            String[] split = key.split(" ");
+            int x = Integer.parseInt(split[0]);
+            int y = Integer.parseInt(split[1]);
+            int z = Integer.parseInt(split[2]);
+            consumer.accept(new BlockPosition(x, y, z), (JSONMap) value);
+        });
+    }
+
+    private static void writeBlock(Writer out, DataBlock db, Map<String, Integer> keys, List<String> keyList) {
+        DataBlockSchema schema = db.schema;
+        if (schema == null) {
+            writeFields(out, db.data, keys, keyList);
+            return;
+        }
+        out.varInt(db.data.size() + 1 + Long.bitCount(db.present));
+        out.varInt(keyIndex(DataBlockSchema.SCHEMA_KEY, keys, keyList));
+        out.write(TAG_STRING);
+        out.string(schema.getName());
+        for (DataBlockSchema.Field field : schema.getFields()) {
+            if ((db.present & field.mask()) == 0) {
+                continue;
+            }
+            out.varInt(keyIndex(field.getKey(), keys, keyList));
+            switch (field.getType()) {
+                case INT:
+                    out.write(TAG_INT);
+                    out.varInt(zigZag((int) db.primitives[field.slot]));
+                    break;
+                case LONG:
+                    out.write(TAG_LONG);
+                    out.varLong(zigZag(db.primitives[field.slot]));
+                    break;
+                case DOUBLE:
+                    out.write(TAG_DOUBLE);
+                    out.fixedLong(db.primitives[field.slot]);
+                    break;
+                case BOOLEAN:
+                    out.write(db.primitives[field.slot] != 0 ? TAG_TRUE : TAG_FALSE);
+                    break;
+                case STRING:
+                    out.write(TAG_STRING);
+                    out.string((String) db.objects[field.slot]);
+                    break;
+            }
+        }
+        writeEntries(out, db.data, keys, keyList);
+    }
+
+    private static int keyIndex(String key, Map<String, Integer> keys, List<String> keyList) {
+        Integer index = keys.get(key);
+        if (index == null) {
+            index = keyList.size();
+            keys.put(key, index);
+            keyList.add(key);
+        }
+        return index;
+    }
+
+    private static void writeFields(Writer out, Map<String, Object> map, Map<String, Integer> keys, List<String> keyList) {
+        out.varInt(map.size());
+        writeEntries(out, map, keys, keyList);
+    }
+
+    private static void writeEntries(Writer out, Map<String, Object> map, Map<String, Integer> keys, List<String> keyList) {
+        map.forEach((key, value) -> {
+            out.varInt(keyIndex(key, keys, keyList));
+            writeValue(out, value, keys, keyList);
+        });
+    }
+
+    private static void writeValue(Writer out, Object value, Map<String, Integer> keys, List<String> keyList) {
+        if (value == null) {
+            out.write(TAG_NULL);
+        } else if (value instanceof String) {
+            out.write(TAG_STRING);
+            out.string((String) value);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            out.write(TAG_INT);
+            out.varInt(zigZag(((Number) value).intValue()));
+        } else if (value instanceof Long) {
+            out.write(TAG_LONG);
+            out.varLong(zigZag((long) value));
+        } else if (value instanceof Double || value instanceof Float) {
+            out.write(TAG_DOUBLE);
+            out.fixedLong(Double.doubleToRawLongBits(((Number) value).doubleValue()));
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.write(TAG_LIST);
+            out.varInt(list.size());
+            list.forEach(o -> writeValue(out, o, keys, keyList));
+        } else if (value instanceof Map) {
+            out.write(TAG_MAP);
+            writeFields(out, (Map<String, Object>) value, keys, keyList);
+        } else {
+            out.write(TAG_STRING);
+            out.string(value.toString());
+        }
+    }
+
+    private static JSONMap readMap(Reader in, String[] keys) {
+        int size = in.varInt();
+        JSONMap map = new JSONMap();
+        for (int i = 0; i < size; i++) {
+            String key = keys[in.varInt()];
+            map.put(key, readValue(in, keys));
+        }
+        return map;
+    }
+
+    private static Object readValue(Reader in, String[] keys) {
+        byte tag = in.read();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_STRING:
+                return in.string();
+            case TAG_INT:
+                return unZigZag(in.varInt());
+            case TAG_LONG:
+                return unZigZag(in.varLong());
+            case TAG_DOUBLE:
+                return Double.longBitsToDouble(in.fixedLong());
+            case TAG_TRUE:
+                return true;
+            case TAG_FALSE:
+                return false;
+            case TAG_LIST:
+                int size = in.varInt();
+                JSONList list = new JSONList();
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue(in, keys));
+                }
+                return list;
+            case TAG_MAP:
+                return readMap(in, keys);
+            default:
+                throw new IllegalArgumentException("Invalid block data value tag " + tag + " at position " + (in.pos - 1));
+        }
+    }
+
+    private static int zigZag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    private static int unZigZag(int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static long zigZag(long n) {
+        return (n << 1) ^ (n >> 63);
+    }
+
+    private static long unZigZag(long n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    private static class Writer {
+
+        private byte[] bytes;
+        private int size;
+
+        public Writer(int capacity) {
+            bytes = new byte[Math.max(capacity, 16)];
+        }
+
+        private void ensureCapacity(int extra) {
+            if (size + extra > bytes.length) {
+                byte[] grown = new byte[Math.max(bytes.length * 2, size + extra)];
+                System.arraycopy(bytes, 0, grown, 0, size);
+                bytes = grown;
+            }
+        }
+
+        public void write(byte b) {
+            ensureCapacity(1);
+            bytes[size++] = b;
+        }
+
+        public void write(byte[] b, int offset, int length) {
+            ensureCapacity(length);
+            System.arraycopy(b, offset, bytes, size, length);
+            size += length;
+        }
+
+        public void varInt(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        public void varLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        public void fixedLong(long value) {
+            ensureCapacity(8);
+            for (int i = 56; i >= 0; i -= 8) {
+                bytes[size++] = (byte) (value >>> i);
+            }
+        }
+
+        public void string(String str) {
+            byte[] b = str.getBytes(StandardCharsets.UTF_8);
+            varInt(b.length);
+            write(b, 0, b.length);
+        }
+
+        public byte[] toByteArray() {
+            byte[] out = new byte[size];
+            System.arraycopy(bytes, 0, out, 0, size);
+            return out;
+        }
+
+    }
+
+    private static class Reader {
+
+        private byte[] bytes;
+        private int pos;
+
+        public Reader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        public byte read() {
+            if (pos >= bytes.length) {
+                throw new IllegalArgumentException("Unexpected end of block data");
+            }
+            return bytes[pos++];
+        }
+
+        public int varInt() {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = read();
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varint in block data at position " + pos);
+        }
+
+        public long varLong() {
+            long value = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                byte b = read();
+                value |= (long) (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Malformed varlong in block data at position " + pos);
+        }
+
+        public long fixedLong() {
+            long value = 0;
+            for (int i = 0; i < 8; i++) {
+                value = (value << 8) | (read() & 0xFF);
+            }
+            return value;
+        }
+
+        public String string() {
+            int length = varInt();
+            if (length < 0 || pos + length > bytes.length) {
+                throw new IllegalArgumentException("Invalid string length in block data at position " + pos);
+            }
+            String str = new String(bytes, pos, length, StandardCharsets.UTF_8);
+            pos += length;
+            return str;
+        }
+
+    }
+
+}
@@ -0,0 +1,49 @@
+package redempt.redlib.blockdata;
+
+import java.util.List;
+
+/**
+ * A copy of the data in a chunk which needs to be saved, taken so that it can be encoded and written on another
+ * thread while the DataBlocks in the chunk continue to be modified
+ *
+ * @author Redempt
+ */
+class ChunkSnapshot {
+
+    private final ChunkPosition pos;
+    private final List<DataBlock> blocks;
+    private final int[] removed;
+
+    /**
+     * @param pos     The position of the chunk
+     * @param blocks  Copies of the DataBlocks to save
+     * @param removed The packed positions of the DataBlocks which were removed, or null if this is a full snapshot
+     */
+    ChunkSnapshot(ChunkPosition pos, List<DataBlock> blocks, int[] removed) {
+        this.pos = pos;
+        this.blocks = blocks;
+        this.removed = removed;
+    }
+
+    public ChunkPosition getPosition() {
+        return pos;
+    }
+
+    /**
+     * @return Whether this snapshot only contains the changes since the last save
+     */
+    public boolean isDelta() {
+        return removed != null;
+    }
+
+    /**
+     * @return The encoded data, or null if this is a full snapshot of an empty chunk
+     */
+    public byte[] encode() {
+        if (removed != null) {
+            return ChunkDataCodec.encodeDelta(blocks, removed);
+        }
+        return blocks.isEmpty() ? null : ChunkDataCodec.encode(blocks);
+    }
+
+}
@@ -2,10 +2,13 @@ package redempt.redlib.blockdata;
 
 import org.bukkit.Bukkit;
 import org.bukkit.block.Block;
+import redempt.redlib.blockdata.DataBlockSchema.Field;
 import redempt.redlib.json.JSONList;
 import redempt.redlib.json.JSONMap;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
@@ -20,6 +23,11 @@ public class DataBlock {
     private BlockDataManager manager;
     private BlockPosition block;
     private String world;
+    private ChunkPosition chunk;
+    DataBlockSchema schema;
+    long[] primitives;
+    Object[] objects;
+    long present;
     private Map<String, Object> transientProperties;
 
     DataBlock(JSONMap data, BlockPosition block, String world, BlockDataManager manager) {
@@ -30,7 +38,7 @@ public class DataBlock {
     }
 
     /**
-     * @return The BlockDataManager this DataBlock belongs to
+     * @return The BlockDataManager this DataBlock belongs to, or null if it is a detached copy
      */
     public BlockDataManager getManager() {
         return manager;
@@ -53,14 +61,117 @@ public class DataBlock {
         return Bukkit.getWorld(world).getBlockAt(block.getX(), block.getY(), block.getZ());
     }
 
+    /**
+     * @return The schema this DataBlock stores its fields with, or null if it does not use one
+     */
+    public DataBlockSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * Switches this DataBlock to store its data using a schema, moving the values of its fields out of the map.
+     * Values which do not fit the type of their field are left in the map.
+     *
+     * @param schema The schema to use
+     */
+    void applySchema(DataBlockSchema schema) {
+        if (this.schema == schema) {
+            return;
+        }
+        if (this.schema != null) {
+            data = (JSONMap) getData();
+        }
+        this.schema = schema;
+        primitives = new long[schema.getPrimitiveSlots()];
+        objects = new Object[schema.getObjectSlots()];
+        present = 0;
+        data.remove(DataBlockSchema.SCHEMA_KEY);
+        for (Field field : schema.getFields()) {
+            Object value = data.get(field.getKey());
+            if (value != null && field.accepts(value)) {
+                data.remove(field.getKey());
+                field.setBoxed(this, value);
+                present |= field.mask();
+            }
+        }
+    }
+
+    /**
+     * Copies all of the data from another DataBlock into this one
+     *
+     * @param other The DataBlock to copy from
+     */
+    void copyFrom(DataBlock other) {
+        data = other.data;
+        schema = other.schema;
+        primitives = other.primitives == null ? null : Arrays.copyOf(other.primitives, other.primitives.length);
+        objects = other.objects == null ? null : Arrays.copyOf(other.objects, other.objects.length);
+        present = other.present;
+    }
+
+    /**
+     * Creates a detached copy of this DataBlock which will not change when this one does, for saving
+     *
+     * @return The copy
+     */
+    DataBlock snapshot() {
+        DataBlock copy = new DataBlock((JSONMap) copy(data), block, world, null);
+        copy.schema = schema;
+        copy.primitives = primitives == null ? null : primitives.clone();
+        copy.objects = objects == null ? null : objects.clone();
+        copy.present = present;
+        return copy;
+    }
+
+    private static Object copy(Object value) {
+        if (value instanceof JSONMap) {
+            JSONMap map = new JSONMap();
+            ((JSONMap) value).forEach((k, v) -> map.put(k, copy(v)));
+            return map;
+        }
+        if (value instanceof JSONList) {
+            JSONList list = new JSONList();
+            ((JSONList) value).forEach(v -> list.add(copy(v)));
+            return list;
+        }
+        return value;
+    }
+
+    void setModified() {
+        if (manager != null) {
+            manager.setModified(this);
+        }
+    }
+
+    void updateIndex(String key) {
+        if (manager != null) {
+            manager.updateIndex(this, key);
+        }
+    }
+
+    private Field field(String key) {
+        return schema == null ? null : schema.getField(key);
+    }
+
+    private boolean isPresent(Field field) {
+        return field != null && (present & field.mask()) != 0;
+    }
+
     protected ChunkPosition getChunkPosition() {
-        return new ChunkPosition(block, world);
+        if (chunk == null) {
+            chunk = new ChunkPosition(block, world);
+        }
+        return chunk;
     }
 
     protected BlockPosition getBlockPosition() {
         return block;
     }
 
+    protected String getWorldName() {
+        return world;
+    }
+
     /**
      * Gets an object by key
      *
@@ -68,7 +179,8 @@ public class DataBlock {
      * @return The data as an Object
      */
     public Object getObject(String key) {
-        return data.get(key);
+        Field field = field(key);
+        return isPresent(field) ? field.getBoxed(this) : data.get(key);
     }
 
     /**
@@ -78,7 +190,8 @@ public class DataBlock {
      * @return The data as a String
      */
     public String getString(String key) {
-        return data.getString(key);
+        Field field = field(key);
+        return isPresent(field) ? (String) field.getBoxed(this) : data.getString(key);
     }
 
     /**
@@ -88,6 +201,10 @@ public class DataBlock {
      * @return The data as an Integer
      */
     public Integer getInt(String key) {
+        Field field = field(key);
+        if (isPresent(field)) {
+            return ((Number) field.getBoxed(this)).intValue();
+        }
         return data.getInt(key);
     }
 
@@ -98,6 +215,10 @@ public class DataBlock {
      * @return The data as a Long
      */
     public Long getLong(String key) {
+        Field field = field(key);
+        if (isPresent(field)) {
+            return ((Number) field.getBoxed(this)).longValue();
+        }
         return data.getLong(key);
     }
 
@@ -108,6 +229,10 @@ public class DataBlock {
      * @return The data as a Double
      */
     public Double getDouble(String key) {
+        Field field = field(key);
+        if (isPresent(field)) {
+            return ((Number) field.getBoxed(this)).doubleValue();
+        }
         return data.getDouble(key);
     }
 
@@ -118,7 +243,8 @@ public class DataBlock {
      * @return The data as a Boolean
      */
     public Boolean getBoolean(String key) {
-        return data.getBoolean(key);
+        Field field = field(key);
+        return isPresent(field) ? (Boolean) field.getBoxed(this) : data.getBoolean(key);
     }
 
     /**
@@ -148,14 +274,23 @@ public class DataBlock {
      * @return Whether the key is used
      */
     public boolean contains(String key) {
-        return data.containsKey(key);
+        return isPresent(field(key)) || data.containsKey(key);
     }
 
     /**
      * Clears all data from this DataBlock
      */
     public void clear() {
+        setModified();
         data.clear();
+        present = 0;
+        if (primitives != null) {
+            Arrays.fill(primitives, 0);
+        }
+        if (objects != null) {
+            Arrays.fill(objects, null);
+        }
+        updateIndex(null);
     }
 
     /**
@@ -163,14 +298,35 @@ public class DataBlock {
      *
      * @param key   The key to set the data with
      * @param value The data
+     * @throws IllegalArgumentException If the key is a field of this DataBlock's schema and the value does not
+     *                                  fit its type
      */
     public void set(String key, Object value) {
-        manager.setModified(new ChunkPosition(block, world));
-        if (value == null) {
+        Field field = field(key);
+        if (field != null && value != null && !field.accepts(value)) {
+            throw new IllegalArgumentException("Field " + key + " of schema " + schema.getName() + " cannot store "
+                    + value.getClass().getSimpleName() + " values, it stores " + field.getType());
+        }
+        setModified();
+        if (field != null) {
             data.remove(key);
-            return;
+            if (value == null) {
+                present &= ~field.mask();
+                if (field.getType() == DataBlockSchema.FieldType.STRING) {
+                    objects[field.slot] = null;
+                } else {
+                    primitives[field.slot] = 0;
+                }
+            } else {
+                field.setBoxed(this, value);
+                present |= field.mask();
+            }
+        } else if (value == null) {
+            data.remove(key);
+        } else {
+            data.put(key, value);
         }
-        data.put(key, value);
+        updateIndex(key);
     }
 
     /**
@@ -183,17 +339,31 @@ public class DataBlock {
     }
 
     /**
-     * @return All data stored in this DataBlock
+     * @return All data stored in this DataBlock. If this DataBlock uses a schema, this is a copy and changes to
+     * it will not be reflected in this DataBlock.
      */
     public Map<String, Object> getData() {
-        return data;
+        if (schema == null) {
+            return data;
+        }
+        JSONMap map = new JSONMap();
+        map.putAll(data);
+        for (Field field : schema.getFields()) {
+            if ((present & field.mask()) != 0) {
+                map.put(field.getKey(), field.getBoxed(this));
+            }
+        }
+        return map;
     }
 
     /**
-     * @return All keys used in this DataBlock
+     * @return All keys used in this DataBlock. If this DataBlock uses a schema, this is a copy.
      */
     public Set<String> getKeys() {
-        return data.keySet();
+        if (schema == null) {
+            return data.keySet();
+        }
+        return new HashSet<>(getData().keySet());
     }
 
 }
@@ -0,0 +1,288 @@
+package redempt.redlib.blockdata;
+
+import org.bukkit.Location;
+import redempt.redlib.region.CuboidRegion;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Secondary indexes over the loaded DataBlocks, mapping keys and their values to the DataBlocks which have them,
+ * bucketed by world and chunk. DataBlocks are added and removed as the chunks they are in are loaded and unloaded,
+ * and moved between values when their data changes.
+ *
+ * @author Redempt
+ */
+class DataBlockIndex {
+
+    private Map<String, KeyIndex> keys = new ConcurrentHashMap<>();
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    public boolean isIndexed(String key) {
+        return keys.containsKey(key);
+    }
+
+    /**
+     * Starts indexing a key. This must not be called while holding a chunk's lock, since chunks call into the
+     * index while holding their own lock.
+     *
+     * @param key    The key to index
+     * @param loaded The chunks which are currently loaded, whose DataBlocks will be indexed immediately
+     */
+    public void addKey(String key, Collection<LoadedChunk> loaded) {
+        synchronized (this) {
+            if (keys.containsKey(key)) {
+                return;
+            }
+            keys.put(key, new KeyIndex(key));
+        }
+        // Each chunk adds its own DataBlocks while holding its lock, so that changes made to the chunk after the
+        // key was registered can't be overwritten with stale ones
+        loaded.forEach(c -> c.indexKey(this, key));
+    }
+
+    /**
+     * Adds DataBlocks to the index for a single key
+     *
+     * @param key    The key
+     * @param blocks The DataBlocks
+     */
+    public synchronized void add(String key, Collection<DataBlock> blocks) {
+        KeyIndex index = keys.get(key);
+        if (index != null) {
+            blocks.forEach(index::add);
+        }
+    }
+
+    public synchronized void add(DataBlock db) {
+        keys.values().forEach(k -> k.add(db));
+    }
+
+    public synchronized void remove(DataBlock db) {
+        keys.values().forEach(k -> k.remove(db));
+    }
+
+    public synchronized void clear() {
+        keys.values().forEach(KeyIndex::clear);
+    }
+
+    /**
+     * Updates the index for a key after its value changed in a DataBlock
+     *
+     * @param db  The DataBlock
+     * @param key The key whose value changed, or null if any number of keys may have changed
+     */
+    public synchronized void update(DataBlock db, String key) {
+        if (key == null) {
+            remove(db);
+            add(db);
+            return;
+        }
+        KeyIndex index = keys.get(key);
+        if (index != null) {
+            index.remove(db);
+            index.add(db);
+        }
+    }
+
+    /**
+     * Finds the DataBlocks with a key, or with a specific value for it
+     *
+     * @param key    The key
+     * @param value  The value, or null to find all DataBlocks with the key
+     * @param world  The name of the world to search, or null to search all worlds
+     * @param bounds The minimum and maximum block X, Y, and Z to search, inclusive, or null to search everywhere
+     * @return The matching DataBlocks
+     */
+    public synchronized List<DataBlock> query(String key, Object value, String world, int[] bounds) {
+        KeyIndex index = keys.get(key);
+        if (index == null) {
+            throw new IllegalStateException("Key " + key + " is not indexed");
+        }
+        WorldBuckets buckets = value == null ? index.all : index.byValue.get(normalize(value));
+        List<DataBlock> found = new ArrayList<>();
+        if (buckets != null) {
+            buckets.collect(world, bounds, found);
+        }
+        return found;
+    }
+
+    /**
+     * Makes numbers which are equal but have different types, like the Integers and Longs produced by JSON,
+     * compare equal
+     */
+    private static Object normalize(Object value) {
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Float) {
+            return ((Float) value).doubleValue();
+        }
+        return value;
+    }
+
+    /**
+     * Gets the bounds of the blocks in a region
+     *
+     * @param region The region
+     * @return The minimum and maximum block X, Y, and Z in the region, inclusive
+     */
+    static int[] bounds(CuboidRegion region) {
+        Location start = region.getStart();
+        Location end = region.getEnd();
+        return new int[] {
+                (int) Math.ceil(start.getX()), (int) Math.ceil(start.getY()), (int) Math.ceil(start.getZ()),
+                (int) Math.ceil(end.getX()) - 1, (int) Math.ceil(end.getY()) - 1, (int) Math.ceil(end.getZ()) - 1
+        };
+    }
+
+    static boolean contains(int[] bounds, BlockPosition bPos) {
+        return bPos.getX() >= bounds[0] && bPos.getY() >= bounds[1] && bPos.getZ() >= bounds[2]
+                && bPos.getX() <= bounds[3] && bPos.getY() <= bounds[4] && bPos.getZ() <= bounds[5];
+    }
+
+    private static long chunkKey(int cx, int cz) {
+        return ((long) cx << 32) | (cz & 0xFFFFFFFFL);
+    }
+
+    private static class KeyIndex {
+
+        private String key;
+        private Map<DataBlock, Object> values = new HashMap<>();
+        private WorldBuckets all = new WorldBuckets();
+        private Map<Object, WorldBuckets> byValue = new HashMap<>();
+
+        public KeyIndex(String key) {
+            this.key = key;
+        }
+
+        public void add(DataBlock db) {
+            Object value = db.getObject(key);
+            if (value == null) {
+                return;
+            }
+            value = normalize(value);
+            values.put(db, value);
+            all.add(db);
+            byValue.computeIfAbsent(value, k -> new WorldBuckets()).add(db);
+        }
+
+        public void remove(DataBlock db) {
+            Object value = values.remove(db);
+            if (value == null) {
+                return;
+            }
+            all.remove(db);
+            WorldBuckets buckets = byValue.get(value);
+            if (buckets != null && buckets.remove(db)) {
+                byValue.remove(value);
+            }
+        }
+
+        public void clear() {
+            values.clear();
+            all = new WorldBuckets();
+            byValue.clear();
+        }
+
+    }
+
+    private static class WorldBuckets {
+
+        private Map<String, LongObjectMap<Set<DataBlock>>> worlds = new HashMap<>();
+        private int size;
+
+        public void add(DataBlock db) {
+            BlockPosition bPos = db.getBlockPosition();
+            LongObjectMap<Set<DataBlock>> chunks = worlds.computeIfAbsent(db.getWorldName(), k -> new LongObjectMap<>());
+            long key = chunkKey(bPos.getX() >> 4, bPos.getZ() >> 4);
+            Set<DataBlock> set = chunks.get(key);
+            if (set == null) {
+                set = new HashSet<>();
+                chunks.put(key, set);
+            }
+            if (set.add(db)) {
+                size++;
+            }
+        }
+
+        /**
+         * @return Whether these buckets are now empty
+         */
+        public boolean remove(DataBlock db) {
+            BlockPosition bPos = db.getBlockPosition();
+            LongObjectMap<Set<DataBlock>> chunks = worlds.get(db.getWorldName());
+            if (chunks == null) {
+                return size == 0;
+            }
+            long key = chunkKey(bPos.getX() >> 4, bPos.getZ() >> 4);
+            Set<DataBlock> set = chunks.get(key);
+            if (set != null && set.remove(db)) {
+                size--;
+                if (set.isEmpty()) {
+                    chunks.remove(key);
+                    if (chunks.isEmpty()) {
+                        worlds.remove(db.getWorldName());
+                    }
+                }
+            }
+            return size == 0;
+        }
+
+        public void collect(String world, int[] bounds, List<DataBlock> found) {
+            if (world == null) {
+                worlds.values().forEach(chunks -> chunks.forEach(found::addAll));
+                return;
+            }
+            LongObjectMap<Set<DataBlock>> chunks = worlds.get(world);
+            if (chunks == null) {
+                return;
+            }
+            if (bounds == null) {
+                chunks.forEach(found::addAll);
+                return;
+            }
+            int minCx = bounds[0] >> 4, maxCx = bounds[3] >> 4;
+            int minCz = bounds[2] >> 4, maxCz = bounds[5] >> 4;
+            long area = (long) (maxCx - minCx + 1) * (maxCz - minCz + 1);
+            // Look up each chunk in the bounds, or scan the occupied chunks if there are fewer of them
+            if (area <= chunks.size()) {
+                for (int cx = minCx; cx <= maxCx; cx++) {
+                    for (int cz = minCz; cz <= maxCz; cz++) {
+                        Set<DataBlock> set = chunks.get(chunkKey(cx, cz));
+                        if (set != null) {
+                            collect(set, bounds, found);
+                        }
+                    }
+                }
+                return;
+            }
+            chunks.forEachKey(key -> {
+                int cx = (int) (key >> 32);
+                int cz = (int) key;
+                if (cx >= minCx && cx <= maxCx && cz >= minCz && cz <= maxCz) {
+                    collect(chunks.get(key), bounds, found);
+                }
+            });
+        }
+
+        private static void collect(Set<DataBlock> set, int[] bounds, List<DataBlock> found) {
+            for (DataBlock db : set) {
+                if (contains(bounds, db.getBlockPosition())) {
+                    found.add(db);
+                }
+            }
+        }
+
+    }
+
+}
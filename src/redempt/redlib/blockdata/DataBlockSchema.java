@@ -0,0 +1,523 @@
+package redempt.redlib.blockdata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Declares a fixed set of typed fields for DataBlocks. DataBlocks using a schema store the values of its fields
+ * in arrays indexed by field instead of a map, so reading and writing them through the field objects returned by
+ * this class does not box the values or hash their keys. Fields can still be accessed by key through
+ * {@link DataBlock}, and any keys which are not part of the schema are stored as usual. A schema must be
+ * registered with {@link BlockDataManager#registerSchema(DataBlockSchema)} before it is used, after which no
+ * more fields can be added. Schemas can have at most 64 fields.
+ *
+ * @author Redempt
+ */
+public class DataBlockSchema {
+
+    static final String SCHEMA_KEY = "__schema";
+    private static final int MAX_FIELDS = 64;
+
+    private String name;
+    private List<Field> fields = new ArrayList<>();
+    private Map<String, Field> byKey = new HashMap<>();
+    private int primitiveSlots;
+    private int objectSlots;
+    private boolean frozen;
+
+    /**
+     * Creates a DataBlockSchema
+     *
+     * @param name The name of the schema, which is stored with each DataBlock using it
+     */
+    public DataBlockSchema(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return The name of this schema
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return The fields in this schema, in the order they were added
+     */
+    public List<Field> getFields() {
+        return Collections.unmodifiableList(fields);
+    }
+
+    /**
+     * Gets a field by its key
+     *
+     * @param key The key of the field
+     * @return The field, or null if there is no field with the given key in this schema
+     */
+    public Field getField(String key) {
+        return byKey.get(key);
+    }
+
+    /**
+     * Adds an int field
+     *
+     * @param key The key of the field
+     * @return The field
+     */
+    public IntField addInt(String key) {
+        return add(new IntField(this, key, primitiveSlots++));
+    }
+
+    /**
+     * Adds a long field
+     *
+     * @param key The key of the field
+     * @return The field
+     */
+    public LongField addLong(String key) {
+        return add(new LongField(this, key, primitiveSlots++));
+    }
+
+    /**
+     * Adds a double field
+     *
+     * @param key The key of the field
+     * @return The field
+     */
+    public DoubleField addDouble(String key) {
+        return add(new DoubleField(this, key, primitiveSlots++));
+    }
+
+    /**
+     * Adds a boolean field
+     *
+     * @param key The key of the field
+     * @return The field
+     */
+    public BooleanField addBoolean(String key) {
+        return add(new BooleanField(this, key, primitiveSlots++));
+    }
+
+    /**
+     * Adds a String field
+     *
+     * @param key The key of the field
+     * @return The field
+     */
+    public StringField addString(String key) {
+        return add(new StringField(this, key, objectSlots++));
+    }
+
+    private <T extends Field> T add(T field) {
+        if (frozen) {
+            throw new IllegalStateException("Cannot add fields to a schema after it has been registered");
+        }
+        if (fields.size() >= MAX_FIELDS) {
+            throw new IllegalStateException("Schemas cannot have more than " + MAX_FIELDS + " fields");
+        }
+        if (byKey.containsKey(field.key) || field.key.equals(SCHEMA_KEY)) {
+            throw new IllegalArgumentException("Duplicate or reserved field key " + field.key);
+        }
+        field.index = fields.size();
+        fields.add(field);
+        byKey.put(field.key, field);
+        return field;
+    }
+
+    void freeze() {
+        frozen = true;
+    }
+
+    int getPrimitiveSlots() {
+        return primitiveSlots;
+    }
+
+    int getObjectSlots() {
+        return objectSlots;
+    }
+
+    /**
+     * The types of fields a schema can have
+     */
+    public enum FieldType {
+        INT,
+        LONG,
+        DOUBLE,
+        BOOLEAN,
+        STRING
+    }
+
+    /**
+     * A field in a schema. The typed subclasses can read and write the field's value in any DataBlock, but
+     * only avoid boxing for DataBlocks which use the schema the field belongs to.
+     */
+    public static abstract class Field {
+
+        protected final DataBlockSchema schema;
+        protected final String key;
+        protected final int slot;
+        int index;
+
+        private Field(DataBlockSchema schema, String key, int slot) {
+            this.schema = schema;
+            this.key = key;
+            this.slot = slot;
+        }
+
+        /**
+         * @return The key of this field
+         */
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return The type of this field
+         */
+        public abstract FieldType getType();
+
+        long mask() {
+            return 1L << index;
+        }
+
+        protected boolean uses(DataBlock db) {
+            return db.schema == schema;
+        }
+
+        /**
+         * @return Whether the DataBlock uses this field's schema and has a value stored for this field. Values
+         * which did not fit the field are kept by key instead.
+         */
+        protected boolean isPresent(DataBlock db) {
+            return uses(db) && (db.present & mask()) != 0;
+        }
+
+        /**
+         * Checks whether this field has a value in a DataBlock
+         *
+         * @param db The DataBlock
+         * @return Whether this field has a value
+         */
+        public boolean isSet(DataBlock db) {
+            return uses(db) ? (db.present & mask()) != 0 : db.contains(key);
+        }
+
+        /**
+         * Removes the value of this field from a DataBlock
+         *
+         * @param db The DataBlock
+         */
+        public void unset(DataBlock db) {
+            db.remove(key);
+        }
+
+        protected void markSet(DataBlock db) {
+            if (!db.data.isEmpty()) {
+                db.data.remove(key);
+            }
+            db.present |= mask();
+            db.setModified();
+            db.updateIndex(key);
+        }
+
+        /**
+         * Checks whether a value can be stored in this field
+         *
+         * @param value The value
+         * @return Whether the value is of a type this field can store
+         */
+        public abstract boolean accepts(Object value);
+
+        abstract Object getBoxed(DataBlock db);
+
+        abstract void setBoxed(DataBlock db, Object value);
+
+    }
+
+    /**
+     * A field with int values
+     */
+    public static class IntField extends Field {
+
+        private IntField(DataBlockSchema schema, String key, int slot) {
+            super(schema, key, slot);
+        }
+
+        @Override
+        public FieldType getType() {
+            return FieldType.INT;
+        }
+
+        /**
+         * @param db The DataBlock
+         * @return The value of this field, or 0 if it is not set
+         */
+        public int get(DataBlock db) {
+            if (isPresent(db)) {
+                return (int) db.primitives[slot];
+            }
+            Integer value = db.getInt(key);
+            return value == null ? 0 : value;
+        }
+
+        /**
+         * @param db    The DataBlock
+         * @param value The value to set this field to
+         */
+        public void set(DataBlock db, int value) {
+            if (!uses(db)) {
+                db.set(key, value);
+                return;
+            }
+            db.primitives[slot] = value;
+            markSet(db);
+        }
+
+        @Override
+        public boolean accepts(Object value) {
+            if (value instanceof Long) {
+                long l = (Long) value;
+                return l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE;
+            }
+            return value instanceof Integer || value instanceof Short || value instanceof Byte;
+        }
+
+        @Override
+        Object getBoxed(DataBlock db) {
+            return (int) db.primitives[slot];
+        }
+
+        @Override
+        void setBoxed(DataBlock db, Object value) {
+            db.primitives[slot] = ((Number) value).intValue();
+        }
+
+    }
+
+    /**
+     * A field with long values
+     */
+    public static class LongField extends Field {
+
+        private LongField(DataBlockSchema schema, String key, int slot) {
+            super(schema, key, slot);
+        }
+
+        @Override
+        public FieldType getType() {
+            return FieldType.LONG;
+        }
+
+        /**
+         * @param db The DataBlock
+         * @return The value of this field, or 0 if it is not set
+         */
+        public long get(DataBlock db) {
+            if (isPresent(db)) {
+                return db.primitives[slot];
+            }
+            Object value = db.getObject(key);
+            return value == null ? 0 : ((Number) value).longValue();
+        }
+
+        /**
+         * @param db    The DataBlock
+         * @param value The value to set this field to
+         */
+        public void set(DataBlock db, long value) {
+            if (!uses(db)) {
+                db.set(key, value);
+                return;
+            }
+            db.primitives[slot] = value;
+            markSet(db);
+        }
+
+        @Override
+        public boolean accepts(Object value) {
+            return value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+        }
+
+        @Override
+        Object getBoxed(DataBlock db) {
+            return db.primitives[slot];
+        }
+
+        @Override
+        void setBoxed(DataBlock db, Object value) {
+            db.primitives[slot] = ((Number) value).longValue();
+        }
+
+    }
+
+    /**
+     * A field with double values
+     */
+    public static class DoubleField extends Field {
+
+        private DoubleField(DataBlockSchema schema, String key, int slot) {
+            super(schema, key, slot);
+        }
+
+        @Override
+        public FieldType getType() {
+            return FieldType.DOUBLE;
+        }
+
+        /**
+         * @param db The DataBlock
+         * @return The value of this field, or 0 if it is not set
+         */
+        public double get(DataBlock db) {
+            if (isPresent(db)) {
+                return Double.longBitsToDouble(db.primitives[slot]);
+            }
+            Object value = db.getObject(key);
+            return value == null ? 0 : ((Number) value).doubleValue();
+        }
+
+        /**
+         * @param db    The DataBlock
+         * @param value The value to set this field to
+         */
+        public void set(DataBlock db, double value) {
+            if (!uses(db)) {
+                db.set(key, value);
+                return;
+            }
+            db.primitives[slot] = Double.doubleToRawLongBits(value);
+            markSet(db);
+        }
+
+        @Override
+        public boolean accepts(Object value) {
+            return value instanceof Number;
+        }
+
+        @Override
+        Object getBoxed(DataBlock db) {
+            return Double.longBitsToDouble(db.primitives[slot]);
+        }
+
+        @Override
+        void setBoxed(DataBlock db, Object value) {
+            db.primitives[slot] = Double.doubleToRawLongBits(((Number) value).doubleValue());
+        }
+
+    }
+
+    /**
+     * A field with boolean values
+     */
+    public static class BooleanField extends Field {
+
+        private BooleanField(DataBlockSchema schema, String key, int slot) {
+            super(schema, key, slot);
+        }
+
+        @Override
+        public FieldType getType() {
+            return FieldType.BOOLEAN;
+        }
+
+        /**
+         * @param db The DataBlock
+         * @return The value of this field, or false if it is not set
+         */
+        public boolean get(DataBlock db) {
+            if (isPresent(db)) {
+                return db.primitives[slot] != 0;
+            }
+            Boolean value = db.getBoolean(key);
+            return value != null && value;
+        }
+
+        /**
+         * @param db    The DataBlock
+         * @param value The value to set this field to
+         */
+        public void set(DataBlock db, boolean value) {
+            if (!uses(db)) {
+                db.set(key, value);
+                return;
+            }
+            db.primitives[slot] = value ? 1 : 0;
+            markSet(db);
+        }
+
+        @Override
+        public boolean accepts(Object value) {
+            return value instanceof Boolean;
+        }
+
+        @Override
+        Object getBoxed(DataBlock db) {
+            return db.primitives[slot] != 0;
+        }
+
+        @Override
+        void setBoxed(DataBlock db, Object value) {
+            db.primitives[slot] = (Boolean) value ? 1 : 0;
+        }
+
+    }
+
+    /**
+     * A field with String values
+     */
+    public static class StringField extends Field {
+
+        private StringField(DataBlockSchema schema, String key, int slot) {
+            super(schema, key, slot);
+        }
+
+        @Override
+        public FieldType getType() {
+            return FieldType.STRING;
+        }
+
+        /**
+         * @param db The DataBlock
+         * @return The value of this field, or null if it is not set
+         */
+        public String get(DataBlock db) {
+            if (isPresent(db)) {
+                return (String) db.objects[slot];
+            }
+            return db.getString(key);
+        }
+
+        /**
+         * @param db    The DataBlock
+         * @param value The value to set this field to, or null to unset it
+         */
+        public void set(DataBlock db, String value) {
+            if (!uses(db) || value == null) {
+                db.set(key, value);
+                return;
+            }
+            db.objects[slot] = value;
+            markSet(db);
+        }
+
+        @Override
+        public boolean accepts(Object value) {
+            return value instanceof String;
+        }
+
+        @Override
+        Object getBoxed(DataBlock db) {
+            return db.objects[slot];
+        }
+
+        @Override
+        void setBoxed(DataBlock db, Object value) {
+            db.objects[slot] = (String) value;
+        }
+
+    }
+
+}
@@ -0,0 +1,271 @@
+package redempt.redlib.blockdata;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The DataBlocks in a single loaded chunk, keyed by their position packed relative to the chunk
+ *
+ * @author Redempt
+ */
+class LoadedChunk {
+
+    private final ChunkPosition pos;
+    private final IntObjectMap<DataBlock> blocks;
+    private AtomicLong counter;
+    private DataBlockIndex index;
+    private volatile boolean referenced = true;
+    private IntObjectMap<Boolean> dirty = new IntObjectMap<>();
+    private boolean allDirty;
+    private boolean stored;
+    private int deltas;
+
+    public LoadedChunk(ChunkPosition pos) {
+        this(pos, 0);
+    }
+
+    public LoadedChunk(ChunkPosition pos, int expected) {
+        this.pos = pos;
+        blocks = new IntObjectMap<>(expected);
+    }
+
+    public ChunkPosition getPosition() {
+        return pos;
+    }
+
+    public synchronized DataBlock get(int x, int y, int z) {
+        referenced = true;
+        return blocks.get(ChunkDataCodec.pack(x, y, z));
+    }
+
+    /**
+     * Clears the referenced bit used for clock eviction
+     *
+     * @return Whether this chunk had been accessed since the last time this was called
+     */
+    public boolean clearReferenced() {
+        boolean was = referenced;
+        referenced = false;
+        return was;
+    }
+
+    /**
+     * Starts counting the DataBlocks in this chunk towards a total and keeping them in the secondary indexes
+     *
+     * @param counter The counter to add this chunk's DataBlocks to
+     * @param index   The secondary indexes to add this chunk's DataBlocks to
+     */
+    public synchronized void attach(AtomicLong counter, DataBlockIndex index) {
+        this.counter = counter;
+        this.index = index;
+        counter.addAndGet(blocks.size());
+        if (!index.isEmpty()) {
+            blocks.forEach(index::add);
+        }
+    }
+
+    /**
+     * Adds the DataBlocks in this chunk to the index for a key which just started being indexed, unless this
+     * chunk has been detached from the indexes since
+     *
+     * @param index The secondary indexes
+     * @param key   The key which started being indexed
+     */
+    public synchronized void indexKey(DataBlockIndex index, String key) {
+        if (this.index == index) {
+            index.add(key, getBlocks());
+        }
+    }
+
+    /**
+     * Stops counting the DataBlocks in this chunk towards the total it was attached to and removes them from
+     * the secondary indexes
+     */
+    public synchronized void detach() {
+        if (counter != null) {
+            counter.addAndGet(-blocks.size());
+            counter = null;
+        }
+        if (index != null) {
+            if (!index.isEmpty()) {
+                blocks.forEach(index::remove);
+            }
+            index = null;
+        }
+    }
+
+    public synchronized DataBlock get(BlockPosition bPos) {
+        return get(bPos.getX(), bPos.getY(), bPos.getZ());
+    }
+
+    public synchronized void put(DataBlock db) {
+        BlockPosition bPos = db.getBlockPosition();
+        DataBlock old = blocks.put(ChunkDataCodec.pack(bPos.getX(), bPos.getY(), bPos.getZ()), db);
+        if (old == null && counter != null) {
+            counter.incrementAndGet();
+        }
+        if (index != null && !index.isEmpty()) {
+            if (old != null) {
+                index.remove(old);
+            }
+            index.add(db);
+        }
+    }
+
+    /**
+     * Updates the secondary indexes after data in a DataBlock changed, if it is the DataBlock stored in this chunk
+     *
+     * @param db  The DataBlock
+     * @param key The key whose value changed, or null if any number of keys may have changed
+     */
+    public synchronized void reindex(DataBlock db, String key) {
+        if (index == null || index.isEmpty() || (key != null && !index.isIndexed(key))) {
+            return;
+        }
+        BlockPosition bPos = db.getBlockPosition();
+        if (blocks.get(ChunkDataCodec.pack(bPos.getX(), bPos.getY(), bPos.getZ())) == db) {
+            index.update(db, key);
+        }
+    }
+
+    public synchronized DataBlock remove(BlockPosition bPos) {
+        DataBlock removed = blocks.remove(ChunkDataCodec.pack(bPos.getX(), bPos.getY(), bPos.getZ()));
+        if (removed != null && counter != null) {
+            counter.decrementAndGet();
+        }
+        if (removed != null && index != null && !index.isEmpty()) {
+            index.remove(removed);
+        }
+        return removed;
+    }
+
+    /**
+     * Marks a single block in this chunk as changed since the last save
+     *
+     * @param bPos The position of the block
+     */
+    public synchronized void markDirty(BlockPosition bPos) {
+        if (!allDirty) {
+            dirty.put(ChunkDataCodec.pack(bPos.getX(), bPos.getY(), bPos.getZ()), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Marks this whole chunk as changed since the last save, so that it will be rewritten in full
+     */
+    public synchronized void markAllDirty() {
+        allDirty = true;
+        dirty.clear();
+    }
+
+    public synchronized boolean isDirty() {
+        return allDirty || !dirty.isEmpty();
+    }
+
+    /**
+     * Records that this chunk's data was loaded from storage
+     *
+     * @param deltas The number of delta frames stored after the last full frame
+     */
+    public synchronized void setStored(int deltas) {
+        stored = true;
+        this.deltas = deltas;
+    }
+
+    /**
+     * Checks whether the changes to this chunk should be saved as a delta rather than in full
+     *
+     * @param maxDeltas The number of delta frames after which the chunk should be rewritten in full
+     * @return Whether a delta should be saved
+     */
+    public synchronized boolean shouldSaveDelta(int maxDeltas) {
+        return stored && !allDirty && !dirty.isEmpty() && deltas < maxDeltas && dirty.size() * 2 <= blocks.size();
+    }
+
+    /**
+     * Encodes all of the DataBlocks in this chunk and marks it clean
+     *
+     * @return The encoded data, or null if there are no DataBlocks in this chunk
+     */
+    public synchronized byte[] encode() {
+        allDirty = false;
+        dirty.clear();
+        deltas = 0;
+        stored = blocks.size() != 0;
+        if (blocks.size() == 0) {
+            return null;
+        }
+        return ChunkDataCodec.encode(getBlocks());
+    }
+
+    /**
+     * Copies the DataBlocks in this chunk which need to be saved and marks it clean, so that they can be encoded
+     * on another thread
+     *
+     * @param delta Whether to copy only the DataBlocks which changed since the last save
+     * @return The snapshot
+     */
+    public synchronized ChunkSnapshot snapshot(boolean delta) {
+        if (!delta) {
+            List<DataBlock> copies = new ArrayList<>(blocks.size());
+            blocks.forEach(db -> copies.add(db.snapshot()));
+            allDirty = false;
+            dirty.clear();
+            deltas = 0;
+            stored = blocks.size() != 0;
+            return new ChunkSnapshot(pos, copies, null);
+        }
+        List<DataBlock> changed = new ArrayList<>(dirty.size());
+        int[] removed = new int[dirty.size()];
+        int[] removedCount = {0};
+        dirty.forEachKey(packed -> {
+            DataBlock db = blocks.get(packed);
+            if (db == null) {
+                removed[removedCount[0]++] = packed;
+            } else {
+                changed.add(db.snapshot());
+            }
+        });
+        dirty.clear();
+        deltas++;
+        return new ChunkSnapshot(pos, changed, Arrays.copyOf(removed, removedCount[0]));
+    }
+
+    /**
+     * Encodes only the DataBlocks in this chunk which have changed since the last save and marks it clean
+     *
+     * @return The encoded delta frame
+     */
+    public synchronized byte[] encodeDelta() {
+        List<DataBlock> changed = new ArrayList<>(dirty.size());
+        int[] removed = new int[dirty.size()];
+        int[] removedCount = {0};
+        dirty.forEachKey(packed -> {
+            DataBlock db = blocks.get(packed);
+            if (db == null) {
+                removed[removedCount[0]++] = packed;
+            } else {
+                changed.add(db);
+            }
+        });
+        dirty.clear();
+        deltas++;
+        return ChunkDataCodec.encodeDelta(changed, Arrays.copyOf(removed, removedCount[0]));
+    }
+
+    public synchronized int size() {
+        return blocks.size();
+    }
+
+    /**
+     * @return A copy of the DataBlocks in this chunk
+     */
+    public synchronized List<DataBlock> getBlocks() {
+        List<DataBlock> list = new ArrayList<>(blocks.size());
+        blocks.forEach(list::add);
+        return list;
+    }
+
+}
@@ -0,0 +1,67 @@
+package redempt.redlib.blockdata;
+
+/**
+ * Describes the chunks written by a save of a {@link BlockDataManager}
+ *
+ * @author Redempt
+ */
+public class SaveReport {
+
+    private final int chunks;
+    private final int deltas;
+    private final long start = System.nanoTime();
+    private volatile long bytes;
+    private volatile long end = -1;
+
+    SaveReport(int chunks, int deltas) {
+        this.chunks = chunks;
+        this.deltas = deltas;
+    }
+
+    void complete(long bytes) {
+        this.bytes = bytes;
+        end = System.nanoTime();
+    }
+
+    /**
+     * @return The number of chunks included in the save
+     */
+    public int getChunks() {
+        return chunks;
+    }
+
+    /**
+     * @return The number of chunks which were saved by appending only their changes
+     */
+    public int getDeltas() {
+        return deltas;
+    }
+
+    /**
+     * @return The number of bytes of encoded data written, or 0 if the save has not completed
+     */
+    public long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return Whether all of the chunks have been written to the backend
+     */
+    public boolean isComplete() {
+        return end != -1;
+    }
+
+    /**
+     * @return The time the save took in milliseconds, or the time elapsed so far if it has not completed
+     */
+    public long getTime() {
+        return ((end == -1 ? System.nanoTime() : end) - start) / 1000000;
+    }
+
+    @Override
+    public String toString() {
+        return (isComplete() ? "Saved " : "Still saving ") + chunks + " chunks (" + deltas + " as deltas, "
+                + bytes + " bytes) in " + getTime() + "ms";
+    }
+
+}
@@ -3,6 +3,7 @@ package redempt.redlib.blockdata.backend;
 import org.bukkit.plugin.Plugin;
 import redempt.redlib.blockdata.BlockDataManager;
 import redempt.redlib.blockdata.ChunkPosition;
+import redempt.redlib.blockdata.metrics.BlockDataMetrics;
 
 import java.nio.file.Path;
 import java.util.Map;
@@ -36,21 +37,99 @@ public interface BlockDataBackend {
     }
 
     /**
-     * Loads the String data for a given chunk
+     * Creates a new BlockDataBackend backed by SQLite in WAL mode, where loads are run on a pool of threads
+     * with their own read-only connections so that they can run while writes are in progress
+     *
+     * @param path    The path to the SQLite database
+     * @param readers The number of threads to run loads on
+     * @return The BlockDataBackend
+     */
+    public static BlockDataBackend sqlite(Path path, int readers) {
+        if (readers < 1) {
+            throw new IllegalArgumentException("Must have at least one reader");
+        }
+        return new SQLiteBackend(path, readers);
+    }
+
+    /**
+     * Creates a new BlockDataBackend which stores data in region files of 32x32 chunks each
+     *
+     * @param dir The directory to store the region files in
+     * @return The BlockDataBackend
+     */
+    public static RegionFileBackend regionFile(Path dir) {
+        return new RegionFileBackend(dir);
+    }
+
+    /**
+     * Wraps a BlockDataBackend so that saves are queued and written to it in batches
+     *
+     * @param backend   The backend to wrap
+     * @param batchSize The maximum number of chunks to write in a single batch
+     * @param maxQueued The number of queued chunks at which saving will block until the queue has been flushed
+     * @return The wrapping WriteBehindBackend
+     */
+    public static WriteBehindBackend writeBehind(BlockDataBackend backend, int batchSize, int maxQueued) {
+        return new WriteBehindBackend(backend, batchSize, maxQueued);
+    }
+
+    /**
+     * Loads the data for a given chunk
      *
      * @param pos The location of the chunk
-     * @return A CompletableFuture with the String data
+     * @return A CompletableFuture with the data, or null if there is none
      */
-    public CompletableFuture<String> load(ChunkPosition pos);
+    public CompletableFuture<byte[]> load(ChunkPosition pos);
 
     /**
-     * Saves String data for a given chunk
+     * Saves data for a given chunk
      *
      * @param pos  The location of the chunk
      * @param data The data to save
      * @return A CompletableFuture for the saving task
      */
-    public CompletableFuture<Void> save(ChunkPosition pos, String data);
+    public CompletableFuture<Void> save(ChunkPosition pos, byte[] data);
+
+    /**
+     * Saves data for many chunks at once. Backends which support it should write the whole batch
+     * in a single transaction.
+     *
+     * @param batch A map of chunk locations to the data to save for them, where a null value removes the data for that chunk
+     * @return A CompletableFuture for the saving task
+     */
+    public default CompletableFuture<Void> saveBatch(Map<ChunkPosition, byte[]> batch) {
+        return CompletableFuture.allOf(batch.entrySet().stream()
+                .map(e -> e.getValue() == null ? remove(e.getKey()) : save(e.getKey(), e.getValue()))
+                .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * @return Whether this backend can only be written to from the server thread, in which case saves will not
+     * be encoded and written on another thread
+     */
+    public default boolean requiresMainThread() {
+        return false;
+    }
+
+    /**
+     * @return Whether this backend supports appending deltas to the stored data of a chunk
+     */
+    public default boolean supportsDeltas() {
+        return false;
+    }
+
+    /**
+     * Appends data for many chunks at once, without replacing what is already stored for them. When a chunk is
+     * loaded, the data appended to it is returned after its stored data, in the order it was appended. Saving
+     * or removing the data for a chunk discards anything appended to it. Only supported if
+     * {@link BlockDataBackend#supportsDeltas()} returns true.
+     *
+     * @param deltas A map of chunk locations to the data to append for them
+     * @return A CompletableFuture for the saving task
+     */
+    public default CompletableFuture<Void> appendDeltas(Map<ChunkPosition, byte[]> deltas) {
+        throw new UnsupportedOperationException("This backend does not support deltas");
+    }
 
     /**
      * Removes the data attached to a given chunk
@@ -60,6 +139,45 @@ public interface BlockDataBackend {
      */
     public CompletableFuture<Void> remove(ChunkPosition pos);
 
+    /**
+     * Sets the metrics this backend should report its measurements to
+     *
+     * @param metrics The metrics
+     */
+    public default void setMetrics(BlockDataMetrics metrics) {
+    }
+
+    /**
+     * @return Whether this backend supports removing the data for a whole world or area at once
+     */
+    public default boolean supportsBulkRemove() {
+        return false;
+    }
+
+    /**
+     * Removes the data attached to every chunk in a world
+     *
+     * @param world The name of the world
+     * @return A CompletableFuture for the removal task
+     */
+    public default CompletableFuture<Void> removeWorld(String world) {
+        throw new UnsupportedOperationException("This backend cannot remove data in bulk");
+    }
+
+    /**
+     * Removes the data attached to every chunk in a rectangular area
+     *
+     * @param world The name of the world
+     * @param minX  The minimum chunk X, inclusive
+     * @param minZ  The minimum chunk Z, inclusive
+     * @param maxX  The maximum chunk X, inclusive
+     * @param maxZ  The maximum chunk Z, inclusive
+     * @return A CompletableFuture for the removal task
+     */
+    public default CompletableFuture<Void> removeArea(String world, int minX, int minZ, int maxX, int maxZ) {
+        throw new UnsupportedOperationException("This backend cannot remove data in bulk");
+    }
+
     /**
      * Saves all data that has been modified with this BlockDataBackend
      *
@@ -79,7 +197,20 @@ public interface BlockDataBackend {
      *
      * @return A CompletableFuture with all the data
      */
-    public CompletableFuture<Map<ChunkPosition, String>> loadAll();
+    public CompletableFuture<Map<ChunkPosition, byte[]>> loadAll();
+
+    /**
+     * Loads one page of the data stored in the backend, in a stable order, so that all of it can be read
+     * without holding it in memory at once. Not supported by PDC.
+     *
+     * @param after The last chunk of the previous page, or null to load the first page
+     * @param limit The maximum number of chunks to load
+     * @return A CompletableFuture with the data for up to limit chunks, in order. If it contains fewer than
+     * limit chunks, it is the last page.
+     */
+    public default CompletableFuture<Map<ChunkPosition, byte[]>> loadPage(ChunkPosition after, int limit) {
+        throw new UnsupportedOperationException("This backend cannot page through all data blocks");
+    }
 
     /**
      * Attempts to migrate SQLite from an older schema used by the previous BlockDataManager library
@@ -7,6 +7,7 @@ import org.bukkit.plugin.Plugin;
 import redempt.redlib.blockdata.BlockDataManager;
 import redempt.redlib.blockdata.ChunkPosition;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 
@@ -19,15 +20,19 @@ class PDCBackend implements BlockDataBackend {
     }
 
     @Override
-    public CompletableFuture<String> load(ChunkPosition pos) {
+    public CompletableFuture<byte[]> load(ChunkPosition pos) {
         PersistentDataContainer pdc = pos.getWorld().getChunkAt(pos.getX(), pos.getZ()).getPersistentDataContainer();
-        return CompletableFuture.completedFuture(pdc.get(key, PersistentDataType.STRING));
+        if (pdc.has(key, PersistentDataType.BYTE_ARRAY)) {
+            return CompletableFuture.completedFuture(pdc.get(key, PersistentDataType.BYTE_ARRAY));
+        }
+        String legacy = pdc.get(key, PersistentDataType.STRING);
+        return CompletableFuture.completedFuture(legacy == null ? null : legacy.getBytes(StandardCharsets.UTF_8));
     }
 
     @Override
-    public CompletableFuture<Void> save(ChunkPosition pos, String data) {
+    public CompletableFuture<Void> save(ChunkPosition pos, byte[] data) {
         PersistentDataContainer pdc = pos.getWorld().getChunkAt(pos.getX(), pos.getZ()).getPersistentDataContainer();
-        pdc.set(key, PersistentDataType.STRING, data);
+        pdc.set(key, PersistentDataType.BYTE_ARRAY, data);
         return CompletableFuture.completedFuture(null);
     }
 
@@ -38,6 +43,11 @@ class PDCBackend implements BlockDataBackend {
         return CompletableFuture.completedFuture(null);
     }
 
+    @Override
+    public boolean requiresMainThread() {
+        return true;
+    }
+
     @Override
     public CompletableFuture<Void> saveAll() {
         return CompletableFuture.completedFuture(null);
@@ -49,7 +59,7 @@ class PDCBackend implements BlockDataBackend {
     }
 
     @Override
-    public CompletableFuture<Map<ChunkPosition, String>> loadAll() {
+    public CompletableFuture<Map<ChunkPosition, byte[]>> loadAll() {
         throw new UnsupportedOperationException("PDC backend cannot access all data blocks");
     }
 
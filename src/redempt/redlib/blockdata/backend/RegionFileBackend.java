@@ -0,0 +1,541 @@
+package redempt.redlib.blockdata.backend;
+
+import redempt.redlib.blockdata.BlockDataManager;
+import redempt.redlib.blockdata.ChunkPosition;
+import redempt.redlib.blockdata.metrics.BlockDataMetrics;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Stores the data for each chunk in region files holding 32x32 chunks each, similar to how Minecraft stores
+ * chunks. Each region file starts with a table giving the sector offset and length of every chunk in it, so a
+ * chunk can be found without searching. Chunk data is stored in 4KiB sectors, rewritten in place when it still
+ * fits, and deltas are appended in place when there is room left in the chunk's last sector.
+ *
+ * @author Redempt
+ */
+public class RegionFileBackend implements BlockDataBackend {
+
+    private static final int SECTOR_SIZE = 4096;
+    private static final int CHUNKS = 32 * 32;
+    private static final int HEADER_SECTORS = CHUNKS * 8 / SECTOR_SIZE;
+    private static final int MAX_OPEN = 256;
+    private static final Pattern FILE_NAME = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.rdb");
+
+    private Path dir;
+    private ThreadPoolExecutor exec = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+    private volatile BlockDataMetrics metrics = BlockDataMetrics.NONE;
+    // Only accessed on the executor thread, so its size is mirrored for the metrics gauge
+    private volatile int openCount;
+    private Map<Path, RegionFile> open = new LinkedHashMap<Path, RegionFile>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Path, RegionFile> eldest) {
+            if (size() <= MAX_OPEN) {
+                return false;
+            }
+            eldest.getValue().close();
+            return true;
+        }
+    };
+
+    /**
+     * Creates a RegionFileBackend
+     *
+     * @param dir The directory to store the region files in. A subdirectory will be created for each world.
+     */
+    public RegionFileBackend(Path dir) {
+        this.dir = dir;
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return The directory the region files are stored in
+     */
+    public Path getDirectory() {
+        return dir;
+    }
+
+    private <T> CompletableFuture<T> submit(Supplier<T> task) {
+        return CompletableFuture.supplyAsync(task, exec);
+    }
+
+    private CompletableFuture<Void> run(IORunnable task) {
+        return CompletableFuture.runAsync(() -> {
+            long start = System.nanoTime();
+            try {
+                task.run();
+                metrics.recordSince("backend.write", start);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }, exec);
+    }
+
+    private Path file(String world, int rx, int rz) {
+        return dir.resolve(world).resolve("r." + rx + "." + rz + ".rdb");
+    }
+
+    private RegionFile region(String world, int rx, int rz, boolean create) throws IOException {
+        Path file = file(world, rx, rz);
+        RegionFile region = open.get(file);
+        if (region != null) {
+            return region;
+        }
+        if (!create && !Files.exists(file)) {
+            return null;
+        }
+        Files.createDirectories(file.getParent());
+        region = new RegionFile(file);
+        open.put(file, region);
+        openCount = open.size();
+        return region;
+    }
+
+    private RegionFile region(ChunkPosition pos, boolean create) throws IOException {
+        return region(pos.getWorldName(), pos.getX() >> 5, pos.getZ() >> 5, create);
+    }
+
+    private static int index(ChunkPosition pos) {
+        return ((pos.getZ() & 31) << 5) | (pos.getX() & 31);
+    }
+
+    @Override
+    public void setMetrics(BlockDataMetrics metrics) {
+        this.metrics.removeGauge("backend.queue");
+        this.metrics.removeGauge("backend.open");
+        this.metrics = metrics;
+        metrics.gauge("backend.queue", () -> exec.getQueue().size());
+        metrics.gauge("backend.open", () -> openCount);
+    }
+
+    @Override
+    public CompletableFuture<byte[]> load(ChunkPosition pos) {
+        long queued = System.nanoTime();
+        return submit(() -> {
+            long start = System.nanoTime();
+            metrics.record("backend.load.wait", start - queued);
+            try {
+                RegionFile region = region(pos, false);
+                byte[] data = region == null ? null : region.read(index(pos));
+                metrics.recordSince("backend.load", start);
+                return data;
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> save(ChunkPosition pos, byte[] data) {
+        return run(() -> write(pos, data));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveBatch(Map<ChunkPosition, byte[]> batch) {
+        return run(() -> {
+            for (Map.Entry<ChunkPosition, byte[]> entry : batch.entrySet()) {
+                write(entry.getKey(), entry.getValue());
+            }
+        });
+    }
+
+    private void write(ChunkPosition pos, byte[] data) throws IOException {
+        RegionFile region = region(pos, data != null);
+        if (region != null) {
+            region.write(index(pos), data);
+        }
+    }
+
+    @Override
+    public boolean supportsDeltas() {
+        return true;
+    }
+
+    @Override
+    public CompletableFuture<Void> appendDeltas(Map<ChunkPosition, byte[]> deltas) {
+        return run(() -> {
+            for (Map.Entry<ChunkPosition, byte[]> entry : deltas.entrySet()) {
+                region(entry.getKey(), true).append(index(entry.getKey()), entry.getValue());
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> remove(ChunkPosition pos) {
+        return run(() -> write(pos, null));
+    }
+
+    @Override
+    public boolean supportsBulkRemove() {
+        return true;
+    }
+
+    @Override
+    public CompletableFuture<Void> removeWorld(String world) {
+        return removeArea(world, Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public CompletableFuture<Void> removeArea(String world, int minX, int minZ, int maxX, int maxZ) {
+        return run(() -> {
+            if (!Files.isDirectory(dir.resolve(world))) {
+                return;
+            }
+            for (int[] coords : regions(world)) {
+                int startX = Math.max(minX, coords[0] << 5), endX = Math.min(maxX, (coords[0] << 5) | 31);
+                int startZ = Math.max(minZ, coords[1] << 5), endZ = Math.min(maxZ, (coords[1] << 5) | 31);
+                if (startX > endX || startZ > endZ) {
+                    continue;
+                }
+                Path file = file(world, coords[0], coords[1]);
+                if (endX - startX == 31 && endZ - startZ == 31) {
+                    // The whole region is being removed, so the file can be deleted
+                    RegionFile region = open.remove(file);
+                    openCount = open.size();
+                    if (region != null) {
+                        region.close();
+                    }
+                    Files.deleteIfExists(file);
+                    continue;
+                }
+                RegionFile region = region(world, coords[0], coords[1], false);
+                List<Integer> indices = new ArrayList<>();
+                for (int x = startX; x <= endX; x++) {
+                    for (int z = startZ; z <= endZ; z++) {
+                        indices.add(((z & 31) << 5) | (x & 31));
+                    }
+                }
+                region.removeAll(indices);
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> saveAll() {
+        return run(() -> {
+            for (RegionFile region : open.values()) {
+                region.force();
+            }
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> close() {
+        return run(() -> {
+            open.values().forEach(RegionFile::close);
+            open.clear();
+            openCount = 0;
+        }).thenRun(exec::shutdown);
+    }
+
+    @Override
+    public CompletableFuture<Map<ChunkPosition, byte[]>> loadAll() {
+        return loadPage(null, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public CompletableFuture<Map<ChunkPosition, byte[]>> loadPage(ChunkPosition after, int limit) {
+        return submit(() -> {
+            Map<ChunkPosition, byte[]> map = limit == Integer.MAX_VALUE ? new HashMap<>() : new LinkedHashMap<>();
+            try {
+                for (String world : list(dir, Files::isDirectory, p -> p.getFileName().toString())) {
+                    if (after != null && world.compareTo(after.getWorldName()) < 0) {
+                        continue;
+                    }
+                    for (int[] coords : regions(world)) {
+                        int start = 0;
+                        if (after != null && world.equals(after.getWorldName())) {
+                            int compare = compareRegions(coords[0], coords[1], after.getX() >> 5, after.getZ() >> 5);
+                            if (compare < 0) {
+                                continue;
+                            }
+                            if (compare == 0) {
+                                start = index(after) + 1;
+                            }
+                        }
+                        RegionFile region = region(world, coords[0], coords[1], false);
+                        for (int i = start; i < CHUNKS; i++) {
+                            byte[] data = region.read(i);
+                            if (data == null) {
+                                continue;
+                            }
+                            map.put(new ChunkPosition((coords[0] << 5) | (i & 31), (coords[1] << 5) | (i >> 5), world), data);
+                            if (map.size() >= limit) {
+                                return map;
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return map;
+        });
+    }
+
+    private List<int[]> regions(String world) throws IOException {
+        List<int[]> regions = new ArrayList<>();
+        for (String name : list(dir.resolve(world), Files::isRegularFile, p -> p.getFileName().toString())) {
+            Matcher matcher = FILE_NAME.matcher(name);
+            if (matcher.matches()) {
+                regions.add(new int[] {Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2))});
+            }
+        }
+        regions.sort((a, b) -> compareRegions(a[0], a[1], b[0], b[1]));
+        return regions;
+    }
+
+    private static int compareRegions(int ax, int az, int bx, int bz) {
+        return ax != bx ? Integer.compare(ax, bx) : Integer.compare(az, bz);
+    }
+
+    private static List<String> list(Path dir, Predicate<Path> filter, Function<Path, String> name) throws IOException {
+        try (Stream<Path> stream = Files.list(dir)) {
+            return stream.filter(filter).map(name).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Copies all of the data from another backend into this one, page by page, without loading all of it at
+     * once. Can be used to migrate from the SQLite backend.
+     *
+     * @param source The backend to copy the data from
+     * @return A CompletableFuture with the number of chunks copied
+     */
+    public CompletableFuture<Integer> migrateFrom(BlockDataBackend source) {
+        return migrateFrom(source, null, 0);
+    }
+
+    private CompletableFuture<Integer> migrateFrom(BlockDataBackend source, ChunkPosition after, int copied) {
+        int pageSize = 256;
+        return source.loadPage(after, pageSize).thenCompose(page -> {
+            if (page.isEmpty()) {
+                return saveAll().thenApply(v -> copied);
+            }
+            ChunkPosition last = null;
+            for (ChunkPosition pos : page.keySet()) {
+                last = pos;
+            }
+            ChunkPosition next = last;
+            CompletableFuture<Void> saved = saveBatch(page);
+            if (page.size() < pageSize) {
+                return saved.thenCompose(v -> saveAll()).thenApply(v -> copied + page.size());
+            }
+            return saved.thenCompose(v -> migrateFrom(source, next, copied + page.size()));
+        });
+    }
+
+    @Override
+    public boolean attemptMigration(BlockDataManager manager) {
+        return false;
+    }
+
+    private interface IORunnable {
+
+        public void run() throws IOException;
+
+    }
+
+    /**
+     * A single region file. Sectors in use are tracked in memory and rebuilt from the table when the file is opened.
+     */
+    private static class RegionFile {
+
+        private FileChannel channel;
+        // Kept on the heap and written through rather than memory-mapped, since a mapping can't be released
+        // explicitly and would stop the file from being deleted on Windows
+        private ByteBuffer table = ByteBuffer.allocate(HEADER_SECTORS * SECTOR_SIZE);
+        private BitSet used = new BitSet();
+
+        public RegionFile(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            while (table.hasRemaining()) {
+                if (channel.read(table, table.position()) < 0) {
+                    // The file is new, so write out an empty table
+                    writeAt(0, table.array());
+                    break;
+                }
+            }
+            table.clear();
+            used.set(0, HEADER_SECTORS);
+            for (int i = 0; i < CHUNKS; i++) {
+                int offset = offset(i);
+                if (offset != 0) {
+                    used.set(offset, offset + sectors(length(i)));
+                }
+            }
+        }
+
+        private int offset(int index) {
+            return table.getInt(index * 8);
+        }
+
+        private int length(int index) {
+            return table.getInt(index * 8 + 4);
+        }
+
+        private void setEntry(int index, int offset, int length) throws IOException {
+            table.putInt(index * 8, offset);
+            table.putInt(index * 8 + 4, length);
+            ByteBuffer entry = ByteBuffer.wrap(table.array(), index * 8, 8);
+            while (entry.hasRemaining()) {
+                channel.write(entry, entry.position());
+            }
+        }
+
+        private static int sectors(int length) {
+            return (length + SECTOR_SIZE - 1) / SECTOR_SIZE;
+        }
+
+        public byte[] read(int index) throws IOException {
+            int offset = offset(index);
+            if (offset == 0) {
+                return null;
+            }
+            ByteBuffer buf = ByteBuffer.allocate(length(index));
+            long position = (long) offset * SECTOR_SIZE;
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, position + buf.position()) < 0) {
+                    throw new IOException("Unexpected end of region file");
+                }
+            }
+            return buf.array();
+        }
+
+        private void writeAt(long position, byte[] data) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) {
+                channel.write(buf, position + buf.position());
+            }
+        }
+
+        private int allocate(int sectors) {
+            int start = used.nextClearBit(HEADER_SECTORS);
+            while (true) {
+                int end = used.nextSetBit(start);
+                if (end == -1 || end - start >= sectors) {
+                    used.set(start, start + sectors);
+                    return start;
+                }
+                start = used.nextClearBit(end);
+            }
+        }
+
+        public void write(int index, byte[] data) throws IOException {
+            int offset = offset(index);
+            int allocated = offset == 0 ? 0 : sectors(length(index));
+            if (data == null) {
+                if (offset != 0) {
+                    used.clear(offset, offset + allocated);
+                    setEntry(index, 0, 0);
+                }
+                return;
+            }
+            int needed = sectors(data.length);
+            if (needed <= allocated) {
+                writeAt((long) offset * SECTOR_SIZE, data);
+                used.clear(offset + needed, offset + allocated);
+                setEntry(index, offset, data.length);
+                return;
+            }
+            // Write to the new sectors before updating the table, so the old data is intact until then
+            int newOffset = allocate(needed);
+            writeAt((long) newOffset * SECTOR_SIZE, data);
+            setEntry(index, newOffset, data.length);
+            if (offset != 0) {
+                used.clear(offset, offset + allocated);
+            }
+        }
+
+        /**
+         * Removes several chunks at once, writing the table a single time and syncing it, so that a crash can't
+         * leave only some of them removed
+         */
+        public void removeAll(List<Integer> indices) throws IOException {
+            boolean changed = false;
+            for (int index : indices) {
+                int offset = offset(index);
+                if (offset == 0) {
+                    continue;
+                }
+                used.clear(offset, offset + sectors(length(index)));
+                table.putInt(index * 8, 0);
+                table.putInt(index * 8 + 4, 0);
+                changed = true;
+            }
+            if (changed) {
+                writeAt(0, table.array());
+                force();
+            }
+        }
+
+        public void append(int index, byte[] delta) throws IOException {
+            int offset = offset(index);
+            int length = length(index);
+            if (offset == 0) {
+                write(index, delta);
+                return;
+            }
+            int allocated = sectors(length);
+            if (sectors(length + delta.length) <= allocated) {
+                writeAt((long) offset * SECTOR_SIZE + length, delta);
+                setEntry(index, offset, length + delta.length);
+                return;
+            }
+            int extra = sectors(length + delta.length) - allocated;
+            int end = offset + allocated;
+            if (used.nextSetBit(end) == -1 || used.nextSetBit(end) >= end + extra) {
+                used.set(end, end + extra);
+                writeAt((long) offset * SECTOR_SIZE + length, delta);
+                setEntry(index, offset, length + delta.length);
+                return;
+            }
+            byte[] data = read(index);
+            byte[] combined = new byte[data.length + delta.length];
+            System.arraycopy(data, 0, combined, 0, data.length);
+            System.arraycopy(delta, 0, combined, data.length, delta.length);
+            write(index, combined);
+        }
+
+        public void force() throws IOException {
+            channel.force(false);
+        }
+
+        public void close() {
+            try {
+                force();
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+    }
+
+}
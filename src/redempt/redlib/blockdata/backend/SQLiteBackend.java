@@ -4,6 +4,7 @@ import org.bukkit.block.Block;
 import redempt.redlib.blockdata.BlockDataManager;
 import redempt.redlib.blockdata.ChunkPosition;
 import redempt.redlib.blockdata.DataBlock;
+import redempt.redlib.blockdata.metrics.BlockDataMetrics;
 import redempt.redlib.json.JSONMap;
 import redempt.redlib.json.JSONParser;
 import redempt.redlib.misc.LocationUtils;
@@ -17,19 +18,45 @@ import java.nio.file.StandardCopyOption;
 import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.CompletableFuture;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 class SQLiteBackend implements BlockDataBackend {
 
     private SQLHelper helper;
-    private Executor exec = Executors.newSingleThreadExecutor();
+    private ThreadPoolExecutor exec = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
     private Path path;
+    private ThreadPoolExecutor readers;
+    private List<SQLHelper> readerHelpers = Collections.synchronizedList(new ArrayList<>());
+    private ThreadLocal<SQLHelper> reader;
+    private Map<ChunkPosition, CompletableFuture<Void>> writes = new ConcurrentHashMap<>();
+    private volatile CompletableFuture<Void> bulkWrite = CompletableFuture.completedFuture(null);
+    private volatile BlockDataMetrics metrics = BlockDataMetrics.NONE;
 
     public SQLiteBackend(Path path) {
+        this(path, 0);
+    }
+
+    /**
+     * Creates a SQLiteBackend. If readers is positive, the database is opened in WAL mode, every write is
+     * committed as soon as it is made, and loads are run on a pool of threads with their own read-only
+     * connections so that they do not have to wait for writes to other chunks.
+     *
+     * @param path    The path to the SQLite database
+     * @param readers The number of threads to run loads on, or 0 to run loads on the writer connection
+     */
+    public SQLiteBackend(Path path, int readers) {
         this.path = path;
         try {
             Files.createDirectories(path.getParent());
@@ -37,9 +64,86 @@ class SQLiteBackend implements BlockDataBackend {
             e.printStackTrace();
         }
         helper = new SQLHelper(SQLHelper.openSQLite(path));
-        helper.execute("PRAGMA synchronous = OFF;");
-        helper.executeUpdate("CREATE TABLE IF NOT EXISTS data (x INT, z INT, world STRING, data TEXT, PRIMARY KEY (x, z, world));");
-        helper.setCommitInterval(5 * 20 * 60);
+        if (readers > 0) {
+            helper.execute("PRAGMA journal_mode = WAL;");
+            helper.execute("PRAGMA synchronous = NORMAL;");
+        } else {
+            helper.execute("PRAGMA synchronous = OFF;");
+        }
+        helper.executeUpdate("CREATE TABLE IF NOT EXISTS data (x INT, z INT, world STRING, data BLOB, PRIMARY KEY (x, z, world));");
+        helper.executeUpdate("CREATE TABLE IF NOT EXISTS deltas (x INT, z INT, world STRING, data BLOB);");
+        helper.executeUpdate("CREATE INDEX IF NOT EXISTS deltas_chunk ON deltas (x, z, world);");
+        helper.executeUpdate("CREATE INDEX IF NOT EXISTS data_world ON data (world, x, z);");
+        helper.executeUpdate("CREATE INDEX IF NOT EXISTS deltas_world ON deltas (world, x, z);");
+        if (readers <= 0) {
+            helper.setCommitInterval(5 * 20 * 60);
+            return;
+        }
+        helper.setAutoCommit(false);
+        this.readers = new ThreadPoolExecutor(readers, readers, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+        reader = ThreadLocal.withInitial(() -> {
+            SQLHelper readHelper = new SQLHelper(SQLHelper.openSQLite(path, true));
+            readerHelpers.add(readHelper);
+            return readHelper;
+        });
+    }
+
+    @Override
+    public void setMetrics(BlockDataMetrics metrics) {
+        this.metrics.removeGauge("backend.queue");
+        this.metrics.removeGauge("backend.readers.queue");
+        this.metrics = metrics;
+        metrics.gauge("backend.queue", () -> exec.getQueue().size());
+        if (readers != null) {
+            metrics.gauge("backend.readers.queue", () -> readers.getQueue().size());
+        }
+    }
+
+    private CompletableFuture<Void> write(Collection<ChunkPosition> positions, Runnable task) {
+        CompletableFuture<Void> future = CompletableFuture.runAsync(() -> {
+            long start = System.nanoTime();
+            task.run();
+            metrics.recordSince("backend.write", start);
+        }, exec);
+        if (readers != null) {
+            positions.forEach(pos -> writes.put(pos, future));
+            future.whenComplete((v, e) -> positions.forEach(pos -> writes.remove(pos, future)));
+        }
+        return future;
+    }
+
+    /**
+     * Runs a write which affects chunks that cannot be listed in advance, so reads wait for it to finish
+     */
+    private CompletableFuture<Void> bulkWrite(Runnable task) {
+        CompletableFuture<Void> future = CompletableFuture.runAsync(task, exec);
+        if (readers != null) {
+            bulkWrite = future;
+        }
+        return future;
+    }
+
+    private void commitIfWAL() {
+        if (readers != null) {
+            helper.commit();
+        }
+    }
+
+    private <T> CompletableFuture<T> read(ChunkPosition pos, Function<SQLHelper, T> query) {
+        if (readers == null) {
+            return CompletableFuture.supplyAsync(() -> query.apply(helper), exec);
+        }
+        // Wait for writes to the chunk being read, or to every chunk if reading all of them
+        CompletableFuture<?> pending = pos == null
+                ? CompletableFuture.allOf(writes.values().toArray(new CompletableFuture[0]))
+                : writes.get(pos);
+        if (!bulkWrite.isDone()) {
+            pending = pending == null ? bulkWrite : CompletableFuture.allOf(pending, bulkWrite);
+        }
+        if (pending == null) {
+            return CompletableFuture.supplyAsync(() -> query.apply(reader.get()), readers);
+        }
+        return pending.handle((v, e) -> null).thenApplyAsync(v -> query.apply(reader.get()), readers);
     }
 
     @Override
@@ -75,24 +179,107 @@ class SQLiteBackend implements BlockDataBackend {
     }
 
     @Override
-    public CompletableFuture<String> load(ChunkPosition pos) {
-        return CompletableFuture.supplyAsync(() -> {
-            return helper.querySingleResultString("SELECT data FROM data WHERE x=? AND z=? AND world=?", pos.getX(), pos.getZ(), pos.getWorld().getName());
-        }, exec);
+    public CompletableFuture<byte[]> load(ChunkPosition pos) {
+        long queued = System.nanoTime();
+        return read(pos, h -> {
+            long start = System.nanoTime();
+            metrics.record("backend.load.wait", start - queued);
+            byte[][] data = {h.querySingleResultBytes("SELECT data FROM data WHERE x=? AND z=? AND world=?", pos.getX(), pos.getZ(), pos.getWorldName())};
+            h.queryResults("SELECT data FROM deltas WHERE x=? AND z=? AND world=? ORDER BY rowid;", pos.getX(), pos.getZ(), pos.getWorldName())
+                    .forEach(r -> data[0] = concat(data[0], r.getBytes(1)));
+            metrics.recordSince("backend.load", start);
+            return data[0];
+        });
     }
 
     @Override
-    public CompletableFuture<Void> save(ChunkPosition pos, String data) {
-        return CompletableFuture.runAsync(() -> {
-            helper.executeUpdate("REPLACE INTO data VALUES (?, ?, ?, ?);", pos.getX(), pos.getZ(), pos.getWorld().getName(), data);
-        }, exec);
+    public CompletableFuture<Void> save(ChunkPosition pos, byte[] data) {
+        return write(Collections.singleton(pos), () -> {
+            helper.executeUpdate("REPLACE INTO data VALUES (?, ?, ?, ?);", pos.getX(), pos.getZ(), pos.getWorldName(), data);
+            helper.executeUpdate("DELETE FROM deltas WHERE x=? AND z=? AND world=?;", pos.getX(), pos.getZ(), pos.getWorldName());
+            commitIfWAL();
+        });
+    }
+
+    @Override
+    public boolean supportsDeltas() {
+        return true;
+    }
+
+    @Override
+    public CompletableFuture<Void> appendDeltas(Map<ChunkPosition, byte[]> deltas) {
+        return write(deltas.keySet(), () -> {
+            List<Object[]> rows = new ArrayList<>(deltas.size());
+            deltas.forEach((pos, data) -> rows.add(new Object[] {pos.getX(), pos.getZ(), pos.getWorldName(), data}));
+            helper.transaction(() -> helper.executeBatch("INSERT INTO deltas VALUES (?, ?, ?, ?);", rows, Math.max(rows.size(), 1)));
+        });
+    }
+
+    private static byte[] concat(byte[] data, byte[] delta) {
+        if (data == null) {
+            return delta;
+        }
+        byte[] combined = new byte[data.length + delta.length];
+        System.arraycopy(data, 0, combined, 0, data.length);
+        System.arraycopy(delta, 0, combined, data.length, delta.length);
+        return combined;
+    }
+
+    @Override
+    public CompletableFuture<Void> saveBatch(Map<ChunkPosition, byte[]> batch) {
+        return write(batch.keySet(), () -> {
+            List<Object[]> replaced = new ArrayList<>(batch.size());
+            List<Object[]> removed = new ArrayList<>();
+            List<Object[]> positions = new ArrayList<>(batch.size());
+            batch.forEach((pos, data) -> {
+                Object[] key = {pos.getX(), pos.getZ(), pos.getWorldName()};
+                positions.add(key);
+                if (data == null) {
+                    removed.add(key);
+                } else {
+                    replaced.add(new Object[] {pos.getX(), pos.getZ(), pos.getWorldName(), data});
+                }
+            });
+            int batchSize = Math.max(batch.size(), 1);
+            // The commit task runs on the main thread, so the batch must not be committed partway through
+            helper.transaction(() -> {
+                helper.executeBatch("REPLACE INTO data VALUES (?, ?, ?, ?);", replaced, batchSize);
+                helper.executeBatch("DELETE FROM data WHERE x=? AND z=? AND world=?;", removed, batchSize);
+                helper.executeBatch("DELETE FROM deltas WHERE x=? AND z=? AND world=?;", positions, batchSize);
+            });
+        });
     }
 
     @Override
     public CompletableFuture<Void> remove(ChunkPosition pos) {
-        return CompletableFuture.runAsync(() -> {
-            helper.executeUpdate("DELETE FROM data WHERE x=? AND z=? AND world=?;", pos.getX(), pos.getZ(), pos.getWorld().getName());
-        }, exec);
+        return write(Collections.singleton(pos), () -> {
+            helper.executeUpdate("DELETE FROM data WHERE x=? AND z=? AND world=?;", pos.getX(), pos.getZ(), pos.getWorldName());
+            helper.executeUpdate("DELETE FROM deltas WHERE x=? AND z=? AND world=?;", pos.getX(), pos.getZ(), pos.getWorldName());
+            commitIfWAL();
+        });
+    }
+
+    @Override
+    public boolean supportsBulkRemove() {
+        return true;
+    }
+
+    @Override
+    public CompletableFuture<Void> removeWorld(String world) {
+        return bulkWrite(() -> {
+            helper.executeUpdate("DELETE FROM data WHERE world=?;", world);
+            helper.executeUpdate("DELETE FROM deltas WHERE world=?;", world);
+            helper.commit();
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> removeArea(String world, int minX, int minZ, int maxX, int maxZ) {
+        return bulkWrite(() -> {
+            helper.executeUpdate("DELETE FROM data WHERE world=? AND x BETWEEN ? AND ? AND z BETWEEN ? AND ?;", world, minX, maxX, minZ, maxZ);
+            helper.executeUpdate("DELETE FROM deltas WHERE world=? AND x BETWEEN ? AND ? AND z BETWEEN ? AND ?;", world, minX, maxX, minZ, maxZ);
+            helper.commit();
+        });
     }
 
     @Override
@@ -107,24 +294,69 @@ class SQLiteBackend implements BlockDataBackend {
         return CompletableFuture.runAsync(() -> {
             saveAll();
             helper.close();
+            if (readers != null) {
+                readers.shutdown();
+                readerHelpers.forEach(SQLHelper::close);
+            }
         }, exec);
     }
 
     @Override
-    public CompletableFuture<Map<ChunkPosition, String>> loadAll() {
-        return CompletableFuture.supplyAsync(() -> {
-            Results results = helper.queryResults("SELECT * FROM data;");
-            Map<ChunkPosition, String> map = new HashMap<>();
+    public CompletableFuture<Map<ChunkPosition, byte[]>> loadAll() {
+        return read(null, h -> {
+            Results results = h.queryResults("SELECT * FROM data;");
+            Map<ChunkPosition, byte[]> map = new HashMap<>();
             results.forEach(r -> {
                 int x = r.get(1);
                 int z = r.get(2);
                 String world = r.getString(3);
                 ChunkPosition pos = new ChunkPosition(x, z, world);
-                String data = r.getString(4);
-                map.put(pos, data);
+                map.put(pos, r.getBytes(4));
+            });
+            h.queryResults("SELECT * FROM deltas ORDER BY rowid;").forEach(r -> {
+                int x = r.get(1);
+                int z = r.get(2);
+                String world = r.getString(3);
+                map.merge(new ChunkPosition(x, z, world), r.getBytes(4), SQLiteBackend::concat);
             });
             return map;
-        }, exec);
+        });
+    }
+
+    @Override
+    public CompletableFuture<Map<ChunkPosition, byte[]>> loadPage(ChunkPosition after, int limit) {
+        return read(null, h -> {
+            Results results = after == null
+                    ? h.queryResults("SELECT * FROM data ORDER BY x, z, world LIMIT ?;", limit)
+                    : h.queryResults("SELECT * FROM data WHERE (x, z, world) > (?, ?, ?) ORDER BY x, z, world LIMIT ?;",
+                    after.getX(), after.getZ(), after.getWorldName(), limit);
+            Map<ChunkPosition, byte[]> map = new LinkedHashMap<>();
+            results.forEach(r -> {
+                int x = r.get(1);
+                int z = r.get(2);
+                String world = r.getString(3);
+                map.put(new ChunkPosition(x, z, world), r.getBytes(4));
+            });
+            if (map.isEmpty()) {
+                return map;
+            }
+            ChunkPosition last = null;
+            for (ChunkPosition pos : map.keySet()) {
+                last = pos;
+            }
+            Results deltas = after == null
+                    ? h.queryResults("SELECT * FROM deltas WHERE (x, z, world) <= (?, ?, ?) ORDER BY rowid;",
+                    last.getX(), last.getZ(), last.getWorldName())
+                    : h.queryResults("SELECT * FROM deltas WHERE (x, z, world) > (?, ?, ?) AND (x, z, world) <= (?, ?, ?) ORDER BY rowid;",
+                    after.getX(), after.getZ(), after.getWorldName(), last.getX(), last.getZ(), last.getWorldName());
+            deltas.forEach(r -> {
+                int x = r.get(1);
+                int z = r.get(2);
+                String world = r.getString(3);
+                map.computeIfPresent(new ChunkPosition(x, z, world), (k, v) -> concat(v, r.getBytes(4)));
+            });
+            return map;
+        });
     }
 
 }
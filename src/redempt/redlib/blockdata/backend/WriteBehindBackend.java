@@ -0,0 +1,382 @@
+package redempt.redlib.blockdata.backend;
+
+import redempt.redlib.blockdata.BlockDataManager;
+import redempt.redlib.blockdata.ChunkPosition;
+import redempt.redlib.blockdata.metrics.BlockDataMetrics;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wraps another BlockDataBackend, queueing saves and removals and writing them to the wrapped backend in
+ * bounded batches. Multiple writes to the same chunk before a flush are coalesced into one. Loads check the
+ * queue first, so data which has been queued but not yet written is never lost. Deltas are supported if the
+ * wrapped backend supports them, and deltas queued after a full save are merged into it. Batches which fail to
+ * be written stay queued and are retried, waiting longer after each consecutive failure.
+ *
+ * @author Redempt
+ */
+public class WriteBehindBackend implements BlockDataBackend {
+
+    private static final long MIN_RETRY_DELAY = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_RETRY_DELAY = TimeUnit.MINUTES.toNanos(1);
+
+    private BlockDataBackend backend;
+    private int batchSize;
+    private int maxQueued;
+    private Map<ChunkPosition, Write> pending = new LinkedHashMap<>();
+    private Map<ChunkPosition, Write> writing = new HashMap<>();
+    private CompletableFuture<Void> flushing = CompletableFuture.completedFuture(null);
+    private volatile long lastFlushTime;
+    private volatile long totalFlushTime;
+    private volatile long batchesFlushed;
+    private volatile long chunksFlushed;
+    private int failures;
+    private Throwable lastFailure;
+    private long retryAt;
+    private volatile BlockDataMetrics metrics = BlockDataMetrics.NONE;
+
+    /**
+     * Creates a WriteBehindBackend
+     *
+     * @param backend   The backend to write batches to
+     * @param batchSize The maximum number of chunks to write in a single batch
+     * @param maxQueued The number of queued chunks at which saving will block until the queue has been flushed
+     */
+    public WriteBehindBackend(BlockDataBackend backend, int batchSize, int maxQueued) {
+        if (batchSize < 1 || maxQueued < batchSize) {
+            throw new IllegalArgumentException("Batch size must be positive and no greater than the maximum queue size");
+        }
+        this.backend = backend;
+        this.batchSize = batchSize;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     * @return The backend batches are written to
+     */
+    public BlockDataBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * @return The maximum number of chunks written in a single batch
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @return The number of queued chunks at which saving will block until the queue has been flushed
+     */
+    public int getMaxQueued() {
+        return maxQueued;
+    }
+
+    /**
+     * @return The number of chunks which are queued or currently being written
+     */
+    public synchronized int getQueueSize() {
+        return pending.size() + writing.size();
+    }
+
+    /**
+     * @return The time in milliseconds the most recent batch took to write
+     */
+    public double getLastFlushTime() {
+        return lastFlushTime / 1_000_000d;
+    }
+
+    /**
+     * @return The average time in milliseconds it has taken to write a batch
+     */
+    public double getAverageFlushTime() {
+        long batches = batchesFlushed;
+        return batches == 0 ? 0 : totalFlushTime / 1_000_000d / batches;
+    }
+
+    /**
+     * @return The number of batches which have been written
+     */
+    public long getBatchesFlushed() {
+        return batchesFlushed;
+    }
+
+    /**
+     * @return The number of chunks which have been written
+     */
+    public long getChunksFlushed() {
+        return chunksFlushed;
+    }
+
+    /**
+     * @return The number of batches in a row which have failed to be written, or 0 if the last batch was written
+     */
+    public synchronized int getFailures() {
+        return failures;
+    }
+
+    @Override
+    public CompletableFuture<byte[]> load(ChunkPosition pos) {
+        Write queued;
+        synchronized (this) {
+            Write inFlight = writing.get(pos);
+            queued = pending.get(pos);
+            queued = inFlight == null ? queued : queued == null ? inFlight : inFlight.then(queued);
+        }
+        if (queued == null) {
+            return backend.load(pos);
+        }
+        if (!queued.delta) {
+            return CompletableFuture.completedFuture(queued.data);
+        }
+        // Deltas replace whole blocks, so reapplying one which has also just been written is harmless
+        Write delta = queued;
+        return backend.load(pos).thenApply(data -> data == null ? delta.data : concat(data, delta.data));
+    }
+
+    @Override
+    public CompletableFuture<Void> save(ChunkPosition pos, byte[] data) {
+        return enqueue(pos, new Write(data, false));
+    }
+
+    @Override
+    public CompletableFuture<Void> remove(ChunkPosition pos) {
+        return enqueue(pos, new Write(null, false));
+    }
+
+    @Override
+    public void setMetrics(BlockDataMetrics metrics) {
+        this.metrics.removeGauge("writebehind.queue");
+        this.metrics = metrics;
+        metrics.gauge("writebehind.queue", this::getQueueSize);
+        backend.setMetrics(metrics);
+    }
+
+    @Override
+    public boolean supportsBulkRemove() {
+        return backend.supportsBulkRemove();
+    }
+
+    @Override
+    public CompletableFuture<Void> removeWorld(String world) {
+        return flush().thenCompose(v -> backend.removeWorld(world));
+    }
+
+    @Override
+    public CompletableFuture<Void> removeArea(String world, int minX, int minZ, int maxX, int maxZ) {
+        return flush().thenCompose(v -> backend.removeArea(world, minX, minZ, maxX, maxZ));
+    }
+
+    @Override
+    public CompletableFuture<Void> saveBatch(Map<ChunkPosition, byte[]> batch) {
+        return CompletableFuture.allOf(batch.entrySet().stream()
+                .map(e -> enqueue(e.getKey(), new Write(e.getValue(), false)))
+                .toArray(CompletableFuture[]::new));
+    }
+
+    @Override
+    public boolean supportsDeltas() {
+        return backend.supportsDeltas();
+    }
+
+    @Override
+    public CompletableFuture<Void> appendDeltas(Map<ChunkPosition, byte[]> deltas) {
+        if (!backend.supportsDeltas()) {
+            throw new UnsupportedOperationException("The wrapped backend does not support deltas");
+        }
+        return CompletableFuture.allOf(deltas.entrySet().stream()
+                .map(e -> enqueue(e.getKey(), new Write(e.getValue(), true)))
+                .toArray(CompletableFuture[]::new));
+    }
+
+    /**
+     * Queues a write, flushing the queue if a batch is ready. If the queue is full, this waits for it to be
+     * flushed, unless the wrapped backend is failing, in which case the returned future fails instead.
+     */
+    private CompletableFuture<Void> enqueue(ChunkPosition pos, Write write) {
+        int queued;
+        boolean full;
+        Throwable failure = null;
+        synchronized (this) {
+            Write previous = pending.remove(pos);
+            pending.put(pos, previous == null ? write : previous.then(write));
+            queued = pending.size() + writing.size();
+            full = pending.size() >= batchSize;
+            if (failures > 0 && System.nanoTime() < retryAt) {
+                failure = lastFailure;
+            }
+        }
+        if (failure != null) {
+            // Retrying before the delay is up would most likely fail again, and waiting would never free up the queue
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            if (queued >= maxQueued) {
+                future.completeExceptionally(failure);
+            } else {
+                future.complete(null);
+            }
+            return future;
+        }
+        if (queued >= maxQueued) {
+            CompletableFuture<Void> flush = flush();
+            flush.handle((v, e) -> null).join();
+            return flush;
+        }
+        if (full) {
+            flush();
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Writes everything currently queued to the wrapped backend in batches
+     *
+     * @return A CompletableFuture which completes when everything queued up to this point has been written
+     */
+    public synchronized CompletableFuture<Void> flush() {
+        if (pending.isEmpty()) {
+            return flushing;
+        }
+        List<Map<ChunkPosition, Write>> batches = new ArrayList<>();
+        Map<ChunkPosition, Write> batch = new LinkedHashMap<>();
+        Iterator<Entry<ChunkPosition, Write>> iter = pending.entrySet().iterator();
+        while (iter.hasNext()) {
+            Entry<ChunkPosition, Write> entry = iter.next();
+            batch.put(entry.getKey(), entry.getValue());
+            writing.put(entry.getKey(), entry.getValue());
+            iter.remove();
+            if (batch.size() >= batchSize) {
+                batches.add(batch);
+                batch = new LinkedHashMap<>();
+            }
+        }
+        if (!batch.isEmpty()) {
+            batches.add(batch);
+        }
+        CompletableFuture<Void> future = flushing;
+        for (Map<ChunkPosition, Write> b : batches) {
+            future = future.handle((v, e) -> null).thenCompose(v -> write(b));
+        }
+        flushing = future;
+        return future;
+    }
+
+    private CompletableFuture<Void> write(Map<ChunkPosition, Write> batch) {
+        long start = System.nanoTime();
+        Map<ChunkPosition, byte[]> full = new LinkedHashMap<>();
+        Map<ChunkPosition, byte[]> deltas = new LinkedHashMap<>();
+        batch.forEach((pos, write) -> (write.delta ? deltas : full).put(pos, write.data));
+        CompletableFuture<Void> future = full.isEmpty() ? CompletableFuture.completedFuture(null) : backend.saveBatch(full);
+        if (!deltas.isEmpty()) {
+            future = future.thenCompose(v -> backend.appendDeltas(deltas));
+        }
+        return future.whenComplete((v, e) -> {
+            long elapsed = System.nanoTime() - start;
+            synchronized (this) {
+                batch.forEach(writing::remove);
+                if (e != null) {
+                    // Only report the first failure in a row, since the same batches fail again on every retry
+                    if (failures++ == 0) {
+                        e.printStackTrace();
+                    }
+                    lastFailure = e;
+                    retryAt = System.nanoTime() + Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(failures - 1, 6));
+                    metrics.increment("writebehind.failures");
+                    batch.forEach(this::requeue);
+                    return;
+                }
+                failures = 0;
+                lastFlushTime = elapsed;
+                totalFlushTime += elapsed;
+                batchesFlushed++;
+                chunksFlushed += batch.size();
+                metrics.record("writebehind.flush", elapsed);
+                metrics.increment("writebehind.chunks", batch.size());
+            }
+        });
+    }
+
+    private void requeue(ChunkPosition pos, Write failed) {
+        Write inFlight = writing.get(pos);
+        if (inFlight != null) {
+            if (!inFlight.delta) {
+                return;
+            }
+            failed = failed.then(inFlight);
+        }
+        Write queued = pending.get(pos);
+        pending.put(pos, queued == null ? failed : failed.then(queued));
+    }
+
+    private static byte[] concat(byte[] data, byte[] delta) {
+        byte[] combined = new byte[data.length + delta.length];
+        System.arraycopy(data, 0, combined, 0, data.length);
+        System.arraycopy(delta, 0, combined, data.length, delta.length);
+        return combined;
+    }
+
+    @Override
+    public CompletableFuture<Void> saveAll() {
+        return flush().thenCompose(v -> backend.saveAll());
+    }
+
+    @Override
+    public CompletableFuture<Void> close() {
+        return flush().thenCompose(v -> backend.close());
+    }
+
+    @Override
+    public CompletableFuture<Map<ChunkPosition, byte[]>> loadAll() {
+        return flush().thenCompose(v -> backend.loadAll());
+    }
+
+    @Override
+    public CompletableFuture<Map<ChunkPosition, byte[]>> loadPage(ChunkPosition after, int limit) {
+        return flush().thenCompose(v -> backend.loadPage(after, limit));
+    }
+
+    @Override
+    public boolean attemptMigration(BlockDataManager manager) {
+        return backend.attemptMigration(manager);
+    }
+
+    /**
+     * A queued write to a chunk, which either replaces its data, removes it if the data is null, or appends a
+     * delta to it
+     */
+    private static class Write {
+
+        private byte[] data;
+        private boolean delta;
+
+        public Write(byte[] data, boolean delta) {
+            this.data = data;
+            this.delta = delta;
+        }
+
+        /**
+         * Combines this write with one made after it
+         *
+         * @param next The later write
+         * @return A single write with the same effect as both
+         */
+        public Write then(Write next) {
+            if (!next.delta) {
+                return next;
+            }
+            if (delta) {
+                return new Write(concat(data, next.data), true);
+            }
+            return new Write(data == null ? next.data : concat(data, next.data), false);
+        }
+
+    }
+
+}
@@ -0,0 +1,97 @@
+package redempt.redlib.blockdata.events;
+
+import org.bukkit.event.Cancellable;
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+import redempt.redlib.blockdata.DataBlock;
+import redempt.redlib.blockdata.events.DataBlockDestroyEvent.DestroyCause;
+
+import java.util.List;
+
+/**
+ * Called once when many DataBlocks are destroyed at the same time, such as by an explosion. A
+ * {@link DataBlockDestroyEvent} is still called for each DataBlock afterwards if anything is listening for it.
+ *
+ * @author Redempt
+ */
+public class BulkDataBlockDestroyEvent extends Event implements Cancellable {
+
+    private static HandlerList handlers = new HandlerList();
+
+    public static HandlerList getHandlerList() {
+        return handlers;
+    }
+
+    private List<DataBlock> dataBlocks;
+    private Event parent;
+    private DestroyCause cause;
+    private boolean cancelled = false;
+
+    /**
+     * Creates a new BulkDataBlockDestroyEvent
+     *
+     * @param dataBlocks The DataBlocks being destroyed
+     * @param parent     The Event which caused this one
+     * @param cause      The cause of the DataBlocks being destroyed
+     */
+    public BulkDataBlockDestroyEvent(List<DataBlock> dataBlocks, Event parent, DestroyCause cause) {
+        this.dataBlocks = dataBlocks;
+        this.parent = parent;
+        this.cause = cause;
+    }
+
+    /**
+     * @return The DataBlocks being destroyed. Removing a DataBlock from this list will prevent its data from being removed.
+     */
+    public List<DataBlock> getDataBlocks() {
+        return dataBlocks;
+    }
+
+    /**
+     * @return The reason the DataBlocks were destroyed
+     */
+    public DestroyCause getCause() {
+        return cause;
+    }
+
+    /**
+     * @return The event which caused this one
+     */
+    public Event getParent() {
+        return parent;
+    }
+
+    /**
+     * Cancels the event which caused this one - meaning none of the blocks will be destroyed
+     */
+    public void cancelParent() {
+        setCancelled(true);
+        if (parent instanceof Cancellable) {
+            ((Cancellable) parent).setCancelled(true);
+        }
+    }
+
+    /**
+     * Sets whether the data should be removed from the blocks
+     *
+     * @param cancelled True to cancel removal of data from all of the blocks, false otherwise
+     */
+    @Override
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * @return Whether this event is cancelled
+     */
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public HandlerList getHandlers() {
+        return handlers;
+    }
+
+}
@@ -0,0 +1,88 @@
+package redempt.redlib.blockdata.events;
+
+import org.bukkit.block.Block;
+import org.bukkit.event.Cancellable;
+import org.bukkit.event.Event;
+import org.bukkit.event.HandlerList;
+import redempt.redlib.blockdata.DataBlock;
+
+import java.util.Map;
+
+/**
+ * Called once when many DataBlocks are moved at the same time, such as by a piston. A
+ * {@link DataBlockMoveEvent} is still called for each DataBlock afterwards if anything is listening for it.
+ *
+ * @author Redempt
+ */
+public class BulkDataBlockMoveEvent extends Event implements Cancellable {
+
+    private static HandlerList handlers = new HandlerList();
+
+    public static HandlerList getHandlerList() {
+        return handlers;
+    }
+
+    private Map<DataBlock, Block> destinations;
+    private Event parent;
+    private boolean cancelled = false;
+
+    /**
+     * Creates a new BulkDataBlockMoveEvent
+     *
+     * @param destinations The DataBlocks being moved, mapped to the Blocks they are being moved to
+     * @param parent       The Event which caused this one
+     */
+    public BulkDataBlockMoveEvent(Map<DataBlock, Block> destinations, Event parent) {
+        this.destinations = destinations;
+        this.parent = parent;
+    }
+
+    /**
+     * @return The DataBlocks being moved, mapped to the Blocks they are being moved to. Removing an entry
+     * from this map will prevent that DataBlock's data from being moved.
+     */
+    public Map<DataBlock, Block> getDestinations() {
+        return destinations;
+    }
+
+    /**
+     * @return The event which caused this one
+     */
+    public Event getParent() {
+        return parent;
+    }
+
+    /**
+     * Cancels the blocks from being moved altogether
+     */
+    public void cancelParent() {
+        setCancelled(true);
+        if (parent instanceof Cancellable) {
+            ((Cancellable) parent).setCancelled(true);
+        }
+    }
+
+    /**
+     * Sets whether to move the data to the new Blocks
+     *
+     * @param cancelled True to cancel the moving of data for all of the blocks, false otherwise
+     */
+    @Override
+    public void setCancelled(boolean cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    /**
+     * @return Whether the event is cancelled
+     */
+    @Override
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public HandlerList getHandlers() {
+        return handlers;
+    }
+
+}
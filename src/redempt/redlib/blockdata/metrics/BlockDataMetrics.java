@@ -0,0 +1,84 @@
+package redempt.redlib.blockdata.metrics;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Receives measurements from a {@link redempt.redlib.blockdata.BlockDataManager} and its backend. Counters are
+ * incremented as events happen, gauges are sampled whenever the metrics are read, and latencies are recorded in
+ * nanoseconds.
+ *
+ * @author Redempt
+ */
+public interface BlockDataMetrics {
+
+    /**
+     * Metrics which discard all measurements
+     */
+    public static final BlockDataMetrics NONE = new BlockDataMetrics() {
+
+        @Override
+        public void increment(String name, long amount) {
+        }
+
+        @Override
+        public void gauge(String name, LongSupplier value) {
+        }
+
+        @Override
+        public void record(String name, long nanos) {
+        }
+
+    };
+
+    /**
+     * Increments a counter
+     *
+     * @param name   The name of the counter
+     * @param amount The amount to increment it by
+     */
+    public void increment(String name, long amount);
+
+    /**
+     * Increments a counter by 1
+     *
+     * @param name The name of the counter
+     */
+    public default void increment(String name) {
+        increment(name, 1);
+    }
+
+    /**
+     * Registers a gauge, replacing any gauge with the same name
+     *
+     * @param name  The name of the gauge
+     * @param value A supplier for the current value of the gauge
+     */
+    public void gauge(String name, LongSupplier value);
+
+    /**
+     * Removes a gauge, so that it no longer keeps what it measures reachable
+     *
+     * @param name The name of the gauge
+     */
+    public default void removeGauge(String name) {
+    }
+
+    /**
+     * Records a latency in a histogram
+     *
+     * @param name  The name of the histogram
+     * @param nanos The latency in nanoseconds
+     */
+    public void record(String name, long nanos);
+
+    /**
+     * Records the time elapsed since a start time in a histogram
+     *
+     * @param name  The name of the histogram
+     * @param start The start time, from {@link System#nanoTime()}
+     */
+    public default void recordSince(String name, long start) {
+        record(name, System.nanoTime() - start);
+    }
+
+}
@@ -0,0 +1,200 @@
+package redempt.redlib.blockdata.metrics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * Keeps metrics in memory so they can be inspected at runtime. Instances created with
+ * {@link InMemoryMetrics#create(String)} are listed by the RedLib dev command {@code /blockdata metrics}.
+ *
+ * @author Redempt
+ */
+public class InMemoryMetrics implements BlockDataMetrics {
+
+    private static Map<String, InMemoryMetrics> instances = new ConcurrentHashMap<>();
+
+    /**
+     * Creates an InMemoryMetrics and registers it so it is shown by the dev command, replacing any registered
+     * with the same name
+     *
+     * @param name The name to show the metrics under
+     * @return The InMemoryMetrics
+     */
+    public static InMemoryMetrics create(String name) {
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        instances.put(name, metrics);
+        return metrics;
+    }
+
+    /**
+     * Unregisters an InMemoryMetrics so it is no longer shown by the dev command
+     *
+     * @param name The name the metrics were registered under
+     * @return The InMemoryMetrics which was unregistered, or null if none was registered with the name
+     */
+    public static InMemoryMetrics remove(String name) {
+        return instances.remove(name);
+    }
+
+    /**
+     * @return All registered InMemoryMetrics by name
+     */
+    public static Map<String, InMemoryMetrics> getInstances() {
+        return Collections.unmodifiableMap(instances);
+    }
+
+    private Map<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private Map<String, LongSupplier> gauges = new ConcurrentHashMap<>();
+    private Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+
+    @Override
+    public void increment(String name, long amount) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(amount);
+    }
+
+    @Override
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    @Override
+    public void removeGauge(String name) {
+        gauges.remove(name);
+    }
+
+    @Override
+    public void record(String name, long nanos) {
+        histograms.computeIfAbsent(name, k -> new Histogram()).record(nanos);
+    }
+
+    /**
+     * @param name The name of the counter
+     * @return The value of the counter, or 0 if it has not been incremented
+     */
+    public long getCounter(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * @param name The name of the gauge
+     * @return The current value of the gauge, or 0 if it is not registered
+     */
+    public long getGauge(String name) {
+        LongSupplier gauge = gauges.get(name);
+        return gauge == null ? 0 : gauge.getAsLong();
+    }
+
+    /**
+     * @param name The name of the histogram
+     * @return The histogram, or null if nothing has been recorded in it
+     */
+    public Histogram getHistogram(String name) {
+        return histograms.get(name);
+    }
+
+    /**
+     * Resets all counters and histograms. Gauges are kept.
+     */
+    public void reset() {
+        counters.clear();
+        histograms.clear();
+    }
+
+    /**
+     * @return A line describing each metric, sorted by name
+     */
+    public List<String> report() {
+        List<String> lines = new ArrayList<>();
+        for (String name : new TreeSet<>(gauges.keySet())) {
+            lines.add(name + ": " + getGauge(name));
+        }
+        for (String name : new TreeSet<>(counters.keySet())) {
+            lines.add(name + ": " + getCounter(name));
+        }
+        for (String name : new TreeSet<>(histograms.keySet())) {
+            lines.add(name + ": " + histograms.get(name));
+        }
+        return lines;
+    }
+
+    /**
+     * A histogram of latencies, bucketed by powers of two
+     */
+    public static class Histogram {
+
+        private AtomicLongArray buckets = new AtomicLongArray(64);
+        private LongAdder count = new LongAdder();
+        private LongAdder total = new LongAdder();
+        private AtomicLong max = new AtomicLong();
+
+        private void record(long nanos) {
+            nanos = Math.max(nanos, 0);
+            buckets.incrementAndGet(63 - Long.numberOfLeadingZeros(nanos | 1));
+            count.increment();
+            total.add(nanos);
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        /**
+         * @return The number of latencies recorded
+         */
+        public long getCount() {
+            return count.sum();
+        }
+
+        /**
+         * @return The mean latency in nanoseconds
+         */
+        public double getMean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) total.sum() / n;
+        }
+
+        /**
+         * @return The maximum latency in nanoseconds
+         */
+        public long getMax() {
+            return max.get();
+        }
+
+        /**
+         * Estimates a percentile of the recorded latencies
+         *
+         * @param percentile The percentile, between 0 and 100
+         * @return An upper bound for the percentile in nanoseconds, accurate to within a factor of two
+         */
+        public long getPercentile(double percentile) {
+            long n = count.sum();
+            long target = (long) Math.ceil(n * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= target && seen > 0) {
+                    return Math.min(i == 62 ? Long.MAX_VALUE : (2L << i) - 1, max.get());
+                }
+            }
+            return max.get();
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + getCount() + " mean=" + millis(getMean()) + " p50=" + millis(getPercentile(50))
+                    + " p99=" + millis(getPercentile(99)) + " max=" + millis(getMax());
+        }
+
+        private static String millis(double nanos) {
+            return String.format("%.3fms", nanos / 1000000);
+        }
+
+    }
+
+}
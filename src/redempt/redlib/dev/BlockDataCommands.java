@@ -0,0 +1,42 @@
+package redempt.redlib.dev;
+
+import org.bukkit.ChatColor;
+import org.bukkit.command.CommandSender;
+import redempt.redlib.blockdata.metrics.InMemoryMetrics;
+import redempt.redlib.commandmanager.CommandHook;
+
+import java.util.Map;
+
+public class BlockDataCommands {
+
+    @CommandHook("blockdatametrics")
+    public void metrics(CommandSender sender, String name) {
+        Map<String, InMemoryMetrics> instances = InMemoryMetrics.getInstances();
+        if (name != null && !instances.containsKey(name)) {
+            sender.sendMessage(ChatColor.RED + "No block data metrics named " + name + ".");
+            return;
+        }
+        if (instances.isEmpty()) {
+            sender.sendMessage(ChatColor.RED + "No block data metrics are registered.");
+            return;
+        }
+        instances.forEach((n, metrics) -> {
+            if (name != null && !name.equals(n)) {
+                return;
+            }
+            sender.sendMessage(ChatColor.GOLD + "Block data metrics for " + n + ":");
+            metrics.report().forEach(line -> sender.sendMessage(ChatColor.YELLOW + line));
+        });
+    }
+
+    @CommandHook("blockdatareset")
+    public void reset(CommandSender sender, String name) {
+        InMemoryMetrics.getInstances().forEach((n, metrics) -> {
+            if (name == null || name.equals(n)) {
+                metrics.reset();
+            }
+        });
+        sender.sendMessage(ChatColor.YELLOW + "Block data metrics reset.");
+    }
+
+}
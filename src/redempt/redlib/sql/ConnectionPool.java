@@ -0,0 +1,454 @@
+package redempt.redlib.sql;
+
+import java.io.Closeable;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * A small pool of Connections to the same database, so that queries from different threads do not have to wait
+ * for each other. Pass a ConnectionPool to {@link SQLHelper#SQLHelper(ConnectionPool)} to have each query borrow
+ * a connection for as long as it runs, or borrow connections directly with {@link ConnectionPool#borrow()}.
+ * Connections which have been idle for a while are validated before they are lent out, and connections above
+ * the minimum size are closed in the background once they have been idle for too long.
+ *
+ * @author Redempt
+ */
+public class ConnectionPool implements Closeable {
+
+    private static final long MIN_REAP_INTERVAL = TimeUnit.SECONDS.toMillis(1);
+    private static final ScheduledExecutorService REAPER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "RedLib ConnectionPool reaper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Supplier<Connection> factory;
+    private int minSize;
+    private int maxSize;
+    private long idleTimeout = TimeUnit.MINUTES.toMillis(10);
+    private long borrowTimeout = TimeUnit.SECONDS.toMillis(30);
+    private int validationTimeout = 5;
+    private long validationInterval = TimeUnit.SECONDS.toMillis(30);
+    private ScheduledFuture<?> reap;
+    private Deque<PooledConnection> idle = new ArrayDeque<>();
+    private Map<Connection, PooledConnection> active = new IdentityHashMap<>();
+    private int size;
+    private boolean closed;
+    private long borrows;
+    private long totalWait;
+    private long maxWait;
+    private long timeouts;
+    private long created;
+    private long validationFailures;
+
+    /**
+     * Creates a ConnectionPool and opens its minimum number of connections
+     *
+     * @param factory A supplier which opens a new connection to the database, such as
+     *                {@code () -> SQLHelper.openMySQL(username, password, database)}
+     * @param minSize The number of connections to keep open even while they are idle
+     * @param maxSize The maximum number of connections to open at once
+     */
+    public ConnectionPool(Supplier<Connection> factory, int minSize, int maxSize) {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Pool sizes must satisfy 0 <= minSize <= maxSize and maxSize >= 1");
+        }
+        this.factory = factory;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        for (int i = 0; i < minSize; i++) {
+            PooledConnection connection = open();
+            synchronized (this) {
+                size++;
+                idle.push(connection);
+            }
+        }
+        scheduleReap();
+    }
+
+    /**
+     * Sets how long connections above the minimum size can be idle before they are closed
+     *
+     * @param idleTimeout The idle timeout in milliseconds
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+        scheduleReap();
+    }
+
+    /**
+     * @return How long connections above the minimum size can be idle before they are closed, in milliseconds
+     */
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Sets how long {@link ConnectionPool#borrow()} waits for a connection to be returned when all connections
+     * are in use before it throws an exception
+     *
+     * @param borrowTimeout The borrow timeout in milliseconds
+     */
+    public void setBorrowTimeout(long borrowTimeout) {
+        this.borrowTimeout = borrowTimeout;
+    }
+
+    /**
+     * @return How long {@link ConnectionPool#borrow()} waits for a connection, in milliseconds
+     */
+    public long getBorrowTimeout() {
+        return borrowTimeout;
+    }
+
+    /**
+     * Sets how long to wait for the database to respond when validating an idle connection before lending it out
+     *
+     * @param validationTimeout The validation timeout in seconds, or 0 for no timeout
+     */
+    public void setValidationTimeout(int validationTimeout) {
+        this.validationTimeout = validationTimeout;
+    }
+
+    /**
+     * @return The validation timeout in seconds
+     */
+    public int getValidationTimeout() {
+        return validationTimeout;
+    }
+
+    /**
+     * Sets how long a connection can be idle before it is validated again when it is lent out. Validating a
+     * connection usually takes a round trip to the database.
+     *
+     * @param validationInterval The validation interval in milliseconds, or 0 to validate every connection
+     *                           before it is lent out
+     */
+    public void setValidationInterval(long validationInterval) {
+        this.validationInterval = validationInterval;
+    }
+
+    /**
+     * @return How long a connection can be idle before it is validated again, in milliseconds
+     */
+    public long getValidationInterval() {
+        return validationInterval;
+    }
+
+    /**
+     * @return The minimum number of connections kept open
+     */
+    public int getMinSize() {
+        return minSize;
+    }
+
+    /**
+     * @return The maximum number of connections open at once
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Borrows a connection, waiting for one to be returned if they are all in use and the pool is at its
+     * maximum size. The connection must be returned with {@link ConnectionPool#release(Connection)}, and should
+     * not be closed.
+     *
+     * @return The connection
+     * @throws IllegalStateException If the pool is closed, or no connection was available within the borrow timeout
+     */
+    public Connection borrow() {
+        return borrowPooled().connection;
+    }
+
+    PooledConnection borrowPooled() {
+        long start = System.nanoTime();
+        long deadline = start + TimeUnit.MILLISECONDS.toNanos(borrowTimeout);
+        while (true) {
+            PooledConnection connection;
+            synchronized (this) {
+                while (true) {
+                    if (closed) {
+                        throw new IllegalStateException("Connection pool is closed");
+                    }
+                    connection = idle.poll();
+                    if (connection != null || size < maxSize) {
+                        break;
+                    }
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        timeouts++;
+                        throw new IllegalStateException("Timed out waiting for a connection from the pool");
+                    }
+                    try {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IllegalStateException("Interrupted waiting for a connection from the pool", e);
+                    }
+                }
+                if (connection == null) {
+                    size++;
+                }
+            }
+            if (connection == null) {
+                try {
+                    connection = open();
+                } catch (RuntimeException e) {
+                    synchronized (this) {
+                        size--;
+                        notifyAll();
+                    }
+                    throw e;
+                }
+            } else if (System.currentTimeMillis() - connection.lastUsed >= validationInterval && !validate(connection)) {
+                continue;
+            }
+            long wait = System.nanoTime() - start;
+            synchronized (this) {
+                active.put(connection.connection, connection);
+                borrows++;
+                totalWait += wait;
+                maxWait = Math.max(maxWait, wait);
+            }
+            return connection;
+        }
+    }
+
+    /**
+     * Returns a borrowed connection to the pool. Any transaction left open on it is rolled back.
+     *
+     * @param connection The connection
+     */
+    public void release(Connection connection) {
+        PooledConnection pooled;
+        synchronized (this) {
+            pooled = active.remove(connection);
+        }
+        if (pooled == null) {
+            throw new IllegalArgumentException("Connection was not borrowed from this pool");
+        }
+        boolean broken = false;
+        try {
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            broken = true;
+        }
+        synchronized (this) {
+            if (!closed && !broken) {
+                pooled.lastUsed = System.currentTimeMillis();
+                idle.push(pooled);
+                notifyAll();
+                return;
+            }
+            size--;
+            notifyAll();
+        }
+        close(pooled);
+    }
+
+    PooledConnection getPooled(Connection connection) {
+        synchronized (this) {
+            return active.get(connection);
+        }
+    }
+
+    synchronized List<PooledConnection> getIdle() {
+        return new ArrayList<>(idle);
+    }
+
+    private PooledConnection open() {
+        Connection connection = factory.get();
+        try {
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+        synchronized (this) {
+            created++;
+        }
+        return new PooledConnection(connection);
+    }
+
+    private boolean validate(PooledConnection connection) {
+        boolean valid;
+        try {
+            valid = connection.connection.isValid(validationTimeout);
+        } catch (SQLException e) {
+            valid = false;
+        }
+        if (valid) {
+            return true;
+        }
+        synchronized (this) {
+            validationFailures++;
+            size--;
+            notifyAll();
+        }
+        close(connection);
+        return false;
+    }
+
+    private synchronized void scheduleReap() {
+        if (closed) {
+            return;
+        }
+        if (reap != null) {
+            reap.cancel(false);
+        }
+        reap = REAPER.schedule(this::closeExpired, Math.max(MIN_REAP_INTERVAL, idleTimeout / 2), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes connections above the minimum size which have been idle for longer than the idle timeout
+     */
+    void closeExpired() {
+        List<PooledConnection> expired = new ArrayList<>();
+        synchronized (this) {
+            long cutoff = System.currentTimeMillis() - idleTimeout;
+            // Idle connections are pushed onto the front, so the ones which have been idle longest are at the back
+            Iterator<PooledConnection> iter = idle.descendingIterator();
+            while (iter.hasNext() && size > minSize) {
+                PooledConnection connection = iter.next();
+                if (connection.lastUsed > cutoff) {
+                    break;
+                }
+                iter.remove();
+                size--;
+                expired.add(connection);
+            }
+        }
+        expired.forEach(ConnectionPool::close);
+        scheduleReap();
+    }
+
+    private static void close(PooledConnection connection) {
+        try {
+            connection.connection.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return The number of connections currently open, both idle and borrowed
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * @return The number of connections currently idle
+     */
+    public synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return The number of connections currently borrowed
+     */
+    public synchronized int getActiveCount() {
+        return active.size();
+    }
+
+    /**
+     * @return The number of times a connection has been borrowed
+     */
+    public synchronized long getBorrowCount() {
+        return borrows;
+    }
+
+    /**
+     * @return The average time in milliseconds it has taken to borrow a connection, including waiting for one to
+     * be returned, validating it, or opening a new one
+     */
+    public synchronized double getAverageBorrowWait() {
+        return borrows == 0 ? 0 : totalWait / 1_000_000d / borrows;
+    }
+
+    /**
+     * @return The longest time in milliseconds it has taken to borrow a connection
+     */
+    public synchronized double getMaxBorrowWait() {
+        return maxWait / 1_000_000d;
+    }
+
+    /**
+     * @return The number of times borrowing a connection has timed out
+     */
+    public synchronized long getTimeouts() {
+        return timeouts;
+    }
+
+    /**
+     * @return The number of connections which have been opened
+     */
+    public synchronized long getCreatedCount() {
+        return created;
+    }
+
+    /**
+     * @return The number of idle connections which were closed because they failed validation
+     */
+    public synchronized long getValidationFailures() {
+        return validationFailures;
+    }
+
+    /**
+     * @return Whether this pool has been closed
+     */
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Closes all idle connections and stops lending out connections. Borrowed connections are closed when they
+     * are returned.
+     */
+    @Override
+    public void close() {
+        List<PooledConnection> closing;
+        synchronized (this) {
+            closed = true;
+            if (reap != null) {
+                reap.cancel(false);
+            }
+            closing = new ArrayList<>(idle);
+            size -= idle.size();
+            idle.clear();
+            notifyAll();
+        }
+        closing.forEach(ConnectionPool::close);
+    }
+
+    static class PooledConnection {
+
+        private Connection connection;
+        private long lastUsed = System.currentTimeMillis();
+        StatementCache statements;
+
+        private PooledConnection(Connection connection) {
+            this.connection = connection;
+        }
+
+        public Connection getConnection() {
+            return connection;
+        }
+
+    }
+
+}
@@ -8,6 +8,8 @@ import java.util.function.Function;
  */
 public class SQLCache {
 
+    private static final int FLUSH_BATCH_SIZE = 500;
+
     private String tableName;
     private String columnName;
     private String[] primaryKeyNames;
@@ -15,8 +17,9 @@ public class SQLCache {
     private String selectQuery;
     private String updateQuery;
     private Map<SQLCacheEntry, Object> cache = Collections.synchronizedMap(new HashMap<>());
-    private Set<SQLCacheEntry> modified = Collections.synchronizedSet(new HashSet<>());
+    private Set<SQLCacheEntry> modified = new HashSet<>();
     private SQLHelper sql;
+    private final Object flushLock = new Object();
 
     protected SQLCache(SQLHelper sql, String tableName, String columnName, String... primaryKeyNames) {
         this.tableName = tableName;
@@ -185,19 +188,33 @@ public class SQLCache {
     }
 
     /**
-     * Flushes the cache, saving all changes that were made.
+     * Flushes the cache, saving all changes that were made. The modified values are copied, then written in
+     * batches in a single transaction without blocking reads and updates of the cache while they are written.
+     * Values updated while a flush is running are saved by the next flush.
      */
-    public synchronized void flush() {
-        modified.forEach(s -> {
-            Object val = cache.get(s);
-            Object[] objs = new Object[s.getParams().length + 1];
-            objs[0] = val;
-            for (int i = 0; i < s.getParams().length; i++) {
-                objs[i + 1] = s.getParams()[i];
+    public void flush() {
+        synchronized (flushLock) {
+            Set<SQLCacheEntry> flushing;
+            List<Object[]> rows;
+            synchronized (this) {
+                if (modified.isEmpty()) {
+                    return;
+                }
+                flushing = modified;
+                modified = new HashSet<>();
+                rows = new ArrayList<>(flushing.size());
+                for (SQLCacheEntry entry : flushing) {
+                    rows.add(updateFields(entry, cache.get(entry)));
+                }
             }
-            sql.execute(updateQuery, objs);
-        });
-        modified.clear();
+            try {
+                sql.executeBatch(updateQuery, rows, FLUSH_BATCH_SIZE);
+            } catch (Throwable e) {
+                // SQLHelper rethrows SQLExceptions without declaring them, so they are not RuntimeExceptions
+                requeue(flushing);
+                throw e;
+            }
+        }
     }
 
     /**
@@ -205,19 +222,44 @@ public class SQLCache {
      *
      * @param primaryKeys The primary keys used to access the row
      */
-    public synchronized void flush(Object... primaryKeys) {
+    public void flush(Object... primaryKeys) {
         SQLCacheEntry entry = new SQLCacheEntry(primaryKeys);
-        Object val = cache.get(entry);
-        if (val == null) {
-            return;
+        synchronized (flushLock) {
+            Object[] fields;
+            synchronized (this) {
+                Object val = cache.get(entry);
+                if (val == null) {
+                    return;
+                }
+                fields = updateFields(entry, val);
+                modified.remove(entry);
+            }
+            try {
+                sql.execute(updateQuery, fields);
+            } catch (Throwable e) {
+                requeue(Collections.singleton(entry));
+                throw e;
+            }
         }
-        Object[] objs = new Object[entry.getParams().length + 1];
-        objs[0] = val;
-        for (int i = 0; i < entry.getParams().length; i++) {
-            objs[i + 1] = entry.getParams()[i];
+    }
+
+    private Object[] updateFields(SQLCacheEntry entry, Object val) {
+        Object[] params = entry.getParams();
+        Object[] fields = new Object[params.length + 1];
+        fields[0] = val;
+        System.arraycopy(params, 0, fields, 1, params.length);
+        return fields;
+    }
+
+    /**
+     * Marks entries which failed to flush as modified again, unless they were removed in the meantime
+     */
+    private synchronized void requeue(Set<SQLCacheEntry> entries) {
+        for (SQLCacheEntry entry : entries) {
+            if (cache.containsKey(entry)) {
+                modified.add(entry);
+            }
         }
-        sql.execute(updateQuery, objs);
-        modified.remove(entry);
     }
 
 }
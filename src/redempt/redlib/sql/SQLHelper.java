@@ -1,19 +1,42 @@
 package redempt.redlib.sql;
 
+import org.bukkit.plugin.Plugin;
 import redempt.redlib.RedLib;
 import redempt.redlib.misc.Task;
+import redempt.redlib.sql.ConnectionPool.PooledConnection;
 
 import java.io.Closeable;
 import java.nio.file.Path;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.sql.rowset.CachedRowSet;
+import javax.sql.rowset.RowSetProvider;
 
 /**
- * Wraps a {@link Connection} and offers helpful methods that don't need to be surrounded in a try/catch
+ * Wraps a {@link Connection}, or a {@link ConnectionPool}, and offers helpful methods that don't need to be
+ * surrounded in a try/catch
  *
  * @author Redempt
  */
@@ -26,12 +49,26 @@ public class SQLHelper implements Closeable {
      * @return The Connection to this SQLite database
      */
     public static Connection openSQLite(Path file) {
+        return openSQLite(file, false);
+    }
+
+    /**
+     * Opens a SQLite database file
+     *
+     * @param file     The path to the SQLite database file
+     * @param readOnly Whether to open the database in read-only mode
+     * @return The Connection to this SQLite database
+     */
+    public static Connection openSQLite(Path file, boolean readOnly) {
         try {
             Class.forName("org.sqlite.JDBC");
 
             final Properties properties = new Properties();
             properties.setProperty("foreign_keys", "on");
             properties.setProperty("busy_timeout", "1000");
+            if (readOnly) {
+                properties.setProperty("open_mode", "1");
+            }
 
             return DriverManager.getConnection("jdbc:sqlite:" + file.toAbsolutePath(), properties);
         } catch (ClassNotFoundException | SQLException e) {
@@ -75,13 +112,66 @@ public class SQLHelper implements Closeable {
         return openMySQL("localhost", 3306, username, password, database);
     }
 
+    /**
+     * Opens a pool of connections to a SQLite database file. Write-ahead logging is enabled for the database so
+     * that reads on one connection are not blocked by writes on another, though writes still wait for each other.
+     *
+     * @param file    The path to the SQLite database file
+     * @param minSize The number of connections to keep open even while they are idle
+     * @param maxSize The maximum number of connections to open at once
+     * @return The pool of connections to the SQLite database
+     */
+    public static ConnectionPool openSQLitePool(Path file, int minSize, int maxSize) {
+        return new ConnectionPool(() -> {
+            Connection connection = openSQLite(file);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("PRAGMA journal_mode=WAL;");
+            } catch (SQLException e) {
+                sneakyThrow(e);
+            }
+            return connection;
+        }, minSize, maxSize);
+    }
+
+    /**
+     * Opens a pool of connections to a MySQL database
+     *
+     * @param ip       The IP address to connect to
+     * @param port     The port to connect to
+     * @param username The username to log in with
+     * @param password The password to log in with
+     * @param database The database to use, will be created if it doesn't exist
+     * @param minSize  The number of connections to keep open even while they are idle
+     * @param maxSize  The maximum number of connections to open at once
+     * @return The pool of connections to the MySQL database
+     */
+    public static ConnectionPool openMySQLPool(String ip, int port, String username, String password, String database, int minSize, int maxSize) {
+        return new ConnectionPool(() -> openMySQL(ip, port, username, password, database), minSize, maxSize);
+    }
+
     private static <T extends Exception> void sneakyThrow(Exception e) throws T {
         throw (T) e;
     }
 
+    private static final int DEFAULT_STATEMENT_CACHE_SIZE = 32;
+    private static final int DEFAULT_ASYNC_QUEUE_SIZE = 1024;
+    private static final long ASYNC_SHUTDOWN_TIMEOUT = 10;
+    private static final int MAX_REWRITTEN_PARAMETERS = 65535;
+    private static final int MIN_REWRITTEN_ROWS = 8;
+    private static final Pattern INSERT_VALUES = Pattern.compile("(?is)\\s*((?:INSERT|REPLACE)\\b[^?]*?\\bVALUES)\\s*(\\(\\s*\\?(?:\\s*,\\s*\\?)*\\s*\\))([^?]*?)\\s*;?\\s*");
+
     private Connection connection;
     private List<SQLCache> caches = new ArrayList<>();
     private Task commitTask = null;
+    private LongAdder statementCacheHits = new LongAdder();
+    private LongAdder statementCacheMisses = new LongAdder();
+    private StatementCache statements;
+    private ReadWriteLock connectionLock = new ReentrantReadWriteLock();
+    private ConnectionPool pool;
+    private Map<PreparedStatement, PooledConnection> leased;
+    private volatile int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+    private ExecutorService asyncExecutor;
+    private volatile boolean rewriteBatchedInserts;
 
     /**
      * Constructs a SQLHelper from a Connection. Get the Connection using one of the static SQLHelper open methods.
@@ -90,6 +180,20 @@ public class SQLHelper implements Closeable {
      */
     public SQLHelper(Connection connection) {
         this.connection = connection;
+        statements = new StatementCache(connection, DEFAULT_STATEMENT_CACHE_SIZE, statementCacheHits, statementCacheMisses);
+    }
+
+    /**
+     * Constructs a SQLHelper which borrows a connection from a pool for each query, so queries from different
+     * threads can run at the same time. Pooled connections always auto-commit, so transactions spanning several
+     * queries should be run on a connection borrowed directly from the pool. Get the pool using one of the static
+     * SQLHelper open pool methods. The pool is not closed when this SQLHelper is closed.
+     *
+     * @param pool The pool to borrow connections from
+     */
+    public SQLHelper(ConnectionPool pool) {
+        this.pool = pool;
+        leased = Collections.synchronizedMap(new IdentityHashMap<>());
     }
 
     /**
@@ -196,12 +300,14 @@ public class SQLHelper implements Closeable {
      * @param fields  A vararg of the fields to set in the prepared statement
      */
     public void execute(String command, Object... fields) {
+        PreparedStatement statement = prepare(command, fields);
         try {
-            PreparedStatement statement = prepareStatement(command, fields);
-            statement.execute();
-            statement.close();
+            if (run(statement::execute)) {
+                statement.getResultSet().close();
+            }
+            release(command, statement);
         } catch (SQLException e) {
-            sneakyThrow(e);
+            discard(statement, e);
         }
     }
 
@@ -215,16 +321,254 @@ public class SQLHelper implements Closeable {
      */
     public int executeUpdate(String command, Object... fields) {
         int updatedRows = 0;
+        PreparedStatement statement = prepare(command, fields);
         try {
-            PreparedStatement statement = prepareStatement(command, fields);
-            updatedRows = statement.executeUpdate();
-            statement.close();
+            updatedRows = run(statement::executeUpdate);
+            release(command, statement);
         } catch (SQLException e) {
-            sneakyThrow(e);
+            discard(statement, e);
         }
         return updatedRows;
     }
 
+    /**
+     * Executes a SQL command once for each of several sets of fields, sending them to the database in batches
+     * rather than one at a time. All of the rows are written in a single transaction if auto-commit is enabled,
+     * or as part of the current transaction if it is not. A SQLHelper wrapping a single connection holds off its
+     * other queries until the batch is done, so they are not made part of its transaction.
+     *
+     * @param command   The SQL command to execute
+     * @param rows      The fields to set in the prepared statement for each execution
+     * @param batchSize The maximum number of rows to send to the database at once
+     * @return The number of updated rows for each execution, or {@link Statement#SUCCESS_NO_INFO} for rows
+     * written by a rewritten insert which did not report individual counts
+     */
+    public int[] executeBatch(String command, Iterable<Object[]> rows, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive");
+        }
+        PooledConnection pooled = pool == null ? null : pool.borrowPooled();
+        try {
+            Connection connection = pooled == null ? this.connection : pooled.getConnection();
+            StatementCache cache = pooled == null ? statements : statements(pooled);
+            // Other threads share the wrapped connection, so they are kept out while it runs the batch's transaction
+            Lock lock = pooled == null ? connectionLock.writeLock() : null;
+            if (lock != null) {
+                lock.lock();
+            }
+            boolean autoCommit = false;
+            try {
+                autoCommit = connection.getAutoCommit();
+                if (autoCommit) {
+                    connection.setAutoCommit(false);
+                }
+                Matcher matcher = INSERT_VALUES.matcher(command);
+                int[] counts = rewriteBatchedInserts && matcher.matches()
+                        ? executeRewrittenBatch(cache, command, matcher, rows, batchSize)
+                        : executeBatch(cache, command, rows, batchSize);
+                if (autoCommit) {
+                    connection.commit();
+                }
+                return counts;
+            } catch (SQLException | RuntimeException e) {
+                if (autoCommit) {
+                    try {
+                        connection.rollback();
+                    } catch (SQLException ex) {
+                        e.addSuppressed(ex);
+                    }
+                }
+                throw e;
+            } finally {
+                try {
+                    if (autoCommit) {
+                        connection.setAutoCommit(true);
+                    }
+                } finally {
+                    if (lock != null) {
+                        lock.unlock();
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            sneakyThrow(e);
+            return null;
+        } finally {
+            if (pooled != null) {
+                pool.release(pooled.getConnection());
+            }
+        }
+    }
+
+    /**
+     * Runs several queries on the wrapped connection as a single transaction, which is committed once the task
+     * completes or rolled back if it throws. Queries, commits and batches from other threads wait until the
+     * transaction is done, so they are neither made part of it nor commit it partway through. If auto-commit is
+     * disabled, the transaction also includes anything which had not been committed yet.
+     *
+     * @param task The task running the queries, which should only use this SQLHelper
+     * @throws UnsupportedOperationException If this SQLHelper uses a connection pool
+     */
+    public void transaction(Runnable task) {
+        if (pool != null) {
+            throw new UnsupportedOperationException("Pooled SQLHelpers cannot run transactions, borrow a connection from the pool instead");
+        }
+        Lock lock = connectionLock.writeLock();
+        lock.lock();
+        try {
+            boolean autoCommit = connection.getAutoCommit();
+            if (autoCommit) {
+                connection.setAutoCommit(false);
+            }
+            try {
+                task.run();
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                try {
+                    connection.rollback();
+                } catch (SQLException ex) {
+                    e.addSuppressed(ex);
+                }
+                throw e;
+            } finally {
+                if (autoCommit) {
+                    connection.setAutoCommit(true);
+                }
+            }
+        } catch (SQLException e) {
+            sneakyThrow(e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int[] executeBatch(StatementCache cache, String command, Iterable<Object[]> rows, int batchSize) throws SQLException {
+        List<int[]> counts = new ArrayList<>();
+        PreparedStatement statement = cache.take(command);
+        try {
+            int queued = 0;
+            for (Object[] row : rows) {
+                setFields(statement, row);
+                statement.addBatch();
+                if (++queued == batchSize) {
+                    counts.add(statement.executeBatch());
+                    queued = 0;
+                }
+            }
+            if (queued > 0) {
+                counts.add(statement.executeBatch());
+            }
+        } catch (SQLException | RuntimeException e) {
+            closeFailed(statement, e);
+            throw e;
+        }
+        cache.release(command, statement);
+        return concat(counts);
+    }
+
+    /**
+     * Executes a batch of inserts as multi-row inserts with one set of values for each row, which is much faster
+     * than a batch of single-row inserts over a network. Multi-row inserts are only made with a power of two
+     * rows, so that batches of any size reuse the same few cached statements, and the last few rows are sent as
+     * a batch of the original insert.
+     */
+    private int[] executeRewrittenBatch(StatementCache cache, String command, Matcher insert, Iterable<Object[]> rows, int batchSize) throws SQLException {
+        String tuple = insert.group(2);
+        int parameters = tuple.length() - tuple.replace("?", "").length();
+        int perStatement = Integer.highestOneBit(Math.max(1, Math.min(batchSize, MAX_REWRITTEN_PARAMETERS / parameters)));
+        List<int[]> counts = new ArrayList<>();
+        List<Object[]> chunk = new ArrayList<>(perStatement);
+        for (Object[] row : rows) {
+            chunk.add(row);
+            if (chunk.size() == perStatement) {
+                counts.add(executeRewritten(cache, insert, chunk));
+                chunk.clear();
+            }
+        }
+        int sent = 0;
+        for (int size = perStatement >> 1; size >= MIN_REWRITTEN_ROWS; size >>= 1) {
+            if (chunk.size() - sent >= size) {
+                counts.add(executeRewritten(cache, insert, chunk.subList(sent, sent + size)));
+                sent += size;
+            }
+        }
+        if (sent < chunk.size()) {
+            counts.add(executeBatch(cache, command, chunk.subList(sent, chunk.size()), batchSize));
+        }
+        return concat(counts);
+    }
+
+    private int[] executeRewritten(StatementCache cache, Matcher insert, List<Object[]> rows) throws SQLException {
+        String tuple = insert.group(2);
+        StringBuilder builder = new StringBuilder(insert.group(1).length() + (tuple.length() + 1) * rows.size() + insert.group(3).length());
+        builder.append(insert.group(1)).append(' ');
+        for (int i = 0; i < rows.size(); i++) {
+            if (i != 0) {
+                builder.append(',');
+            }
+            builder.append(tuple);
+        }
+        String command = builder.append(insert.group(3)).toString();
+        PreparedStatement statement = cache.take(command);
+        int updated;
+        try {
+            int i = 1;
+            for (Object[] row : rows) {
+                for (Object field : row) {
+                    statement.setObject(i++, field);
+                }
+            }
+            updated = statement.executeUpdate();
+        } catch (SQLException | RuntimeException e) {
+            closeFailed(statement, e);
+            throw e;
+        }
+        cache.release(command, statement);
+        int[] counts = new int[rows.size()];
+        Arrays.fill(counts, updated == rows.size() ? 1 : Statement.SUCCESS_NO_INFO);
+        return counts;
+    }
+
+    private static void closeFailed(PreparedStatement statement, Exception e) {
+        try {
+            statement.close();
+        } catch (SQLException ex) {
+            e.addSuppressed(ex);
+        }
+    }
+
+    private static int[] concat(List<int[]> arrays) {
+        int[] all = new int[arrays.stream().mapToInt(a -> a.length).sum()];
+        int pos = 0;
+        for (int[] array : arrays) {
+            System.arraycopy(array, 0, all, pos, array.length);
+            pos += array.length;
+        }
+        return all;
+    }
+
+    /**
+     * Sets whether {@link SQLHelper#executeBatch(String, Iterable, int)} rewrites simple inserts, whose values
+     * are all placeholders, into inserts of many rows at once. This sends a batch in a few large statements,
+     * like MySQL Connector/J's rewriteBatchedStatements option, and is much faster for MySQL databases over a
+     * network. Rows are sent a power of two at a time so the rewritten statements can be cached, and the last
+     * few rows of a batch are sent as a regular batch. Individual update counts are not available for rewritten
+     * inserts. SQLite limits the number of placeholders in a statement, so this should generally not be enabled
+     * for SQLite.
+     *
+     * @param rewrite Whether to rewrite batched inserts
+     */
+    public void setRewriteBatchedInserts(boolean rewrite) {
+        rewriteBatchedInserts = rewrite;
+    }
+
+    /**
+     * @return Whether batched inserts are rewritten into inserts of many rows at once
+     */
+    public boolean isRewriteBatchedInserts() {
+        return rewriteBatchedInserts;
+    }
+
     /**
      * Executes a SQL query as a prepared statement, setting its fields to the elements of the vararg passed,
      * returning the value in the first column of the first row in the results
@@ -235,18 +579,15 @@ public class SQLHelper implements Closeable {
      * @return The value in the first column of the first row of the returned results, or null if none is present
      */
     public <T> T querySingleResult(String query, Object... fields) {
+        PreparedStatement statement = prepare(query, fields);
         try {
-            PreparedStatement statement = prepareStatement(query, fields);
-            ResultSet results = statement.executeQuery();
-            if (!results.next()) {
-                return null;
-            }
-            T obj = (T) results.getObject(1);
+            ResultSet results = run(statement::executeQuery);
+            T obj = results.next() ? (T) results.getObject(1) : null;
             results.close();
-            statement.close();
+            release(query, statement);
             return obj;
         } catch (SQLException e) {
-            sneakyThrow(e);
+            discard(statement, e);
             return null;
         }
     }
@@ -262,18 +603,15 @@ public class SQLHelper implements Closeable {
      * column can be parsed into one.
      */
     public String querySingleResultString(String query, Object... fields) {
+        PreparedStatement statement = prepare(query, fields);
         try {
-            PreparedStatement statement = prepareStatement(query, fields);
-            ResultSet results = statement.executeQuery();
-            if (!results.next()) {
-                return null;
-            }
-            String val = results.getString(1);
+            ResultSet results = run(statement::executeQuery);
+            String val = results.next() ? results.getString(1) : null;
             results.close();
-            statement.close();
+            release(query, statement);
             return val;
         } catch (SQLException e) {
-            sneakyThrow(e);
+            discard(statement, e);
             return null;
         }
     }
@@ -287,18 +625,15 @@ public class SQLHelper implements Closeable {
      * @return The bytes in the first column of the first row of the returned results, or null if none is present
      */
     public byte[] querySingleResultBytes(String query, Object... fields) {
+        PreparedStatement statement = prepare(query, fields);
         try {
-            PreparedStatement statement = prepareStatement(query, fields);
-            ResultSet results = statement.executeQuery();
-            if (!results.next()) {
-                return null;
-            }
-            byte[] val = results.getBytes(1);
+            ResultSet results = run(statement::executeQuery);
+            byte[] val = results.next() ? results.getBytes(1) : null;
             results.close();
-            statement.close();
+            release(query, statement);
             return val;
         } catch (SQLException e) {
-            sneakyThrow(e);
+            discard(statement, e);
             return null;
         }
     }
@@ -314,18 +649,15 @@ public class SQLHelper implements Closeable {
      * column can be parsed into one.
      */
     public Long querySingleResultLong(String query, Object... fields) {
+        PreparedStatement statement = prepare(query, fields);
         try {
-            PreparedStatement statement = prepareStatement(query, fields);
-            ResultSet results = statement.executeQuery();
-            if (!results.next()) {
-                return null;
-            }
-            long val = results.getLong(1);
+            ResultSet results = run(statement::executeQuery);
+            Long val = results.next() ? results.getLong(1) : null;
             results.close();
-            statement.close();
+            release(query, statement);
             return val;
         } catch (SQLException e) {
-            sneakyThrow(e);
+            discard(statement, e);
             return null;
         }
     }
@@ -341,16 +673,16 @@ public class SQLHelper implements Closeable {
      */
     public <T> List<T> queryResultList(String query, Object... fields) {
         List<T> list = new ArrayList<>();
+        PreparedStatement statement = prepare(query, fields);
         try {
-            PreparedStatement statement = prepareStatement(query, fields);
-            ResultSet results = statement.executeQuery();
+            ResultSet results = run(statement::executeQuery);
             while (results.next()) {
                 list.add((T) results.getObject(1));
             }
             results.close();
-            statement.close();
+            release(query, statement);
         } catch (SQLException e) {
-            sneakyThrow(e);
+            discard(statement, e);
         }
         return list;
     }
@@ -367,56 +699,269 @@ public class SQLHelper implements Closeable {
      */
     public List<String> queryResultStringList(String query, Object... fields) {
         List<String> list = new ArrayList<>();
+        PreparedStatement statement = prepare(query, fields);
         try {
-            PreparedStatement statement = prepareStatement(query, fields);
-            ResultSet results = statement.executeQuery();
+            ResultSet results = run(statement::executeQuery);
             while (results.next()) {
                 list.add(results.getString(1));
             }
             results.close();
-            statement.close();
+            release(query, statement);
         } catch (SQLException e) {
-            sneakyThrow(e);
+            discard(statement, e);
         }
         return list;
     }
 
     /**
      * Executes a SQL query as a prepared statement, setting its fields to the elements of the vararg passed.
-     * Returns a {@link Results}, which wraps a {@link ResultSet} for easier use
+     * Returns a {@link Results}, which wraps a {@link ResultSet} for easier use. The Results hold on to their
+     * statement until they are closed. For pooled SQLHelpers, the rows are read into memory instead, so that the
+     * connection is returned to the pool immediately rather than being held by Results which are never closed.
      *
      * @param query  The SQL query to execute
      * @param fields A vararg of the fields to set in the prepared statement
      * @return The results of the query
      */
     public Results queryResults(String query, Object... fields) {
+        PreparedStatement statement = prepare(query, fields);
         try {
-            PreparedStatement statement = prepareStatement(query, fields);
-            ResultSet results = statement.executeQuery();
-            return new Results(results, statement);
+            ResultSet results = run(statement::executeQuery);
+            if (pool == null) {
+                return new Results(this, query, results, statement);
+            }
+            CachedRowSet rows = RowSetProvider.newFactory().createCachedRowSet();
+            rows.populate(results);
+            results.close();
+            release(query, statement);
+            return new Results(this, query, rows, null);
         } catch (SQLException e) {
-            sneakyThrow(e);
+            discard(statement, e);
             return null;
         }
     }
 
+    /**
+     * Sets the executor used to run async queries, shutting down the previous one once its queued queries have
+     * run. The executor should have a bounded queue, so that queries are rejected rather than piling up without
+     * limit if the database cannot keep up. By default, a single thread is used for SQLHelpers wrapping a single
+     * connection, which also keeps async queries in the order they were submitted, and one thread per connection
+     * for pooled SQLHelpers, each with a queue of up to 1024 queries.
+     *
+     * @param executor The executor to run async queries on
+     */
+    public void setAsyncExecutor(ExecutorService executor) {
+        ExecutorService previous;
+        synchronized (this) {
+            previous = asyncExecutor;
+            asyncExecutor = executor;
+        }
+        if (previous != null && previous != executor) {
+            previous.shutdown();
+        }
+    }
+
+    /**
+     * Sets the executor used to run async queries to a new fixed-size pool of daemon threads with a bounded queue
+     *
+     * @param threads   The number of threads to run async queries on
+     * @param queueSize The maximum number of async queries waiting to run, beyond which new queries fail with a
+     *                  {@link RejectedExecutionException}
+     */
+    public void setAsyncExecutor(int threads, int queueSize) {
+        setAsyncExecutor(createAsyncExecutor(threads, queueSize));
+    }
+
+    private static ExecutorService createAsyncExecutor(int threads, int queueSize) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(queueSize), r -> {
+            Thread thread = new Thread(r, "RedLib SQLHelper async " + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private synchronized ExecutorService getAsyncExecutor() {
+        if (asyncExecutor == null) {
+            asyncExecutor = createAsyncExecutor(pool == null ? 1 : pool.getMaxSize(), DEFAULT_ASYNC_QUEUE_SIZE);
+        }
+        return asyncExecutor;
+    }
+
+    private <T> CompletableFuture<T> async(Supplier<T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            getAsyncExecutor().execute(() -> {
+                try {
+                    future.complete(task.get());
+                } catch (Throwable t) {
+                    future.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Runs queries using this SQLHelper on the async executor. The queries should be finished with any
+     * {@link Results} before returning, since they cannot be used safely from another thread.
+     *
+     * @param query A function which runs queries using this SQLHelper and returns a result
+     * @param <T>   The type of the result
+     * @return A CompletableFuture which completes with the result, or exceptionally if the queries fail or the
+     * executor's queue is full
+     */
+    public <T> CompletableFuture<T> queryAsync(Function<SQLHelper, T> query) {
+        return async(() -> query.apply(this));
+    }
+
+    /**
+     * Executes a SQL query as a prepared statement on the async executor, setting its fields to the elements of
+     * the vararg passed
+     *
+     * @param command The SQL command to execute
+     * @param fields  A vararg of the fields to set in the prepared statement
+     * @return A CompletableFuture which completes when the command has been executed
+     */
+    public CompletableFuture<Void> executeAsync(String command, Object... fields) {
+        return async(() -> {
+            execute(command, fields);
+            return null;
+        });
+    }
+
+    /**
+     * Executes a SQL query as a prepared statement on the async executor, setting its fields to the elements of
+     * the vararg passed
+     *
+     * @param command The SQL command to execute
+     * @param fields  A vararg of the fields to set in the prepared statement
+     * @return A CompletableFuture which completes with the number of updated rows
+     */
+    public CompletableFuture<Integer> executeUpdateAsync(String command, Object... fields) {
+        return async(() -> executeUpdate(command, fields));
+    }
+
+    /**
+     * Executes a SQL command once for each of several sets of fields on the async executor, sending them to the
+     * database in batches
+     *
+     * @param command   The SQL command to execute
+     * @param rows      The fields to set in the prepared statement for each execution
+     * @param batchSize The maximum number of rows to send to the database at once
+     * @return A CompletableFuture which completes with the number of updated rows for each execution
+     * @see SQLHelper#executeBatch(String, Iterable, int)
+     */
+    public CompletableFuture<int[]> executeBatchAsync(String command, Iterable<Object[]> rows, int batchSize) {
+        return async(() -> executeBatch(command, rows, batchSize));
+    }
+
+    /**
+     * Executes a SQL query as a prepared statement on the async executor, setting its fields to the elements of
+     * the vararg passed, and maps each row of the results
+     *
+     * @param query  The SQL query to execute
+     * @param mapper A function which maps the current row of the results to a value
+     * @param fields A vararg of the fields to set in the prepared statement
+     * @param <T>    The type the rows are mapped to
+     * @return A CompletableFuture which completes with the mapped rows, in order
+     */
+    public <T> CompletableFuture<List<T>> queryResultsAsync(String query, Function<Results, T> mapper, Object... fields) {
+        return async(() -> {
+            List<T> list = new ArrayList<>();
+            queryResults(query, fields).forEach(r -> list.add(mapper.apply(r)));
+            return list;
+        });
+    }
+
+    /**
+     * Returns a CompletableFuture which completes on the server thread with the result of another, so that
+     * callbacks attached to it can safely use the Bukkit API
+     *
+     * @param future The CompletableFuture, such as one returned by an async query
+     * @param <T>    The type of the result
+     * @return A CompletableFuture which completes on the server thread the tick after the given one completes
+     */
+    public static <T> CompletableFuture<T> onServerThread(CompletableFuture<T> future) {
+        return onServerThread(RedLib.getCallingPlugin(), future);
+    }
+
+    /**
+     * Returns a CompletableFuture which completes on the server thread with the result of another, so that
+     * callbacks attached to it can safely use the Bukkit API
+     *
+     * @param plugin The plugin to schedule the task to complete it with
+     * @param future The CompletableFuture, such as one returned by an async query
+     * @param <T>    The type of the result
+     * @return A CompletableFuture which completes on the server thread the tick after the given one completes
+     */
+    public static <T> CompletableFuture<T> onServerThread(Plugin plugin, CompletableFuture<T> future) {
+        CompletableFuture<T> sync = new CompletableFuture<>();
+        future.whenComplete((v, e) -> {
+            Runnable complete = () -> {
+                if (e != null) {
+                    sync.completeExceptionally(e);
+                } else {
+                    sync.complete(v);
+                }
+            };
+            try {
+                Task.syncDelayed(plugin, complete);
+            } catch (RuntimeException ex) {
+                // The plugin was disabled, so there will be no more ticks to complete it on
+                complete.run();
+            }
+        });
+        return sync;
+    }
+
     /**
      * @return The Connection this SQLHelper wraps
+     * @throws IllegalStateException If this SQLHelper uses a connection pool
      */
     public Connection getConnection() {
+        if (pool != null) {
+            throw new IllegalStateException("Pooled SQLHelpers do not have a single connection, borrow one from the pool instead");
+        }
         return connection;
     }
 
+    /**
+     * @return The pool this SQLHelper borrows connections from, or null if it wraps a single connection
+     */
+    public ConnectionPool getPool() {
+        return pool;
+    }
+
+    /**
+     * @return Whether this SQLHelper borrows connections from a pool
+     */
+    public boolean isPooled() {
+        return pool != null;
+    }
+
     /**
      * Sets the wrapped connection's auto-commit property. Calling this method will automatically disable
      * the task started by {@link SQLHelper#setCommitInterval(int)}.
      *
      * @param autoCommit The auto-commit property - whether it will commit with every command
+     * @throws UnsupportedOperationException If this SQLHelper uses a connection pool and auto-commit is being disabled
      */
     public void setAutoCommit(boolean autoCommit) {
+        if (pool != null) {
+            if (!autoCommit) {
+                throw new UnsupportedOperationException("Pooled SQLHelpers always auto-commit");
+            }
+            return;
+        }
         try {
             setCommitInterval(-1);
-            connection.setAutoCommit(autoCommit);
+            run(() -> {
+                connection.setAutoCommit(autoCommit);
+                return null;
+            });
         } catch (SQLException e) {
             sneakyThrow(e);
 
@@ -427,6 +972,9 @@ public class SQLHelper implements Closeable {
      * @return The auto-commit property of the wrapped connection
      */
     public boolean isAutoCommit() {
+        if (pool != null) {
+            return true;
+        }
         try {
             return connection.getAutoCommit();
         } catch (SQLException e) {
@@ -454,46 +1002,227 @@ public class SQLHelper implements Closeable {
     }
 
     /**
-     * Flushes all caches and commits the transaction
+     * Flushes all caches and commits the transaction. Pooled SQLHelpers only flush their caches, since their
+     * connections auto-commit.
      */
     public void commit() {
         try {
             flushAllCaches();
-            connection.commit();
+            if (pool != null) {
+                return;
+            }
+            run(() -> {
+                connection.commit();
+                return null;
+            });
         } catch (SQLException e) {
             sneakyThrow(e);
         }
     }
 
     /**
-     * Prepares a statement, setting its fields to the elements of the vararg passed
+     * Prepares a statement, setting its fields to the elements of the vararg passed. The statement is not taken
+     * from the statement cache, and should be closed by the caller.
      *
      * @param query  The SQL query to prepare
      * @param fields A vararg of the fields to set in the prepared statement
      * @return The PreparedStatement with its fields set
+     * @throws UnsupportedOperationException If this SQLHelper uses a connection pool
      */
     public PreparedStatement prepareStatement(String query, Object... fields) {
+        if (pool != null) {
+            throw new UnsupportedOperationException("Pooled SQLHelpers cannot prepare statements outside of a query, borrow a connection from the pool instead");
+        }
         try {
-            PreparedStatement statement = connection.prepareStatement(query);
-            int i = 1;
-            for (Object object : fields) {
-                statement.setObject(i, object);
-                i++;
-            }
-            return statement;
+            return setFields(connection.prepareStatement(query), fields);
         } catch (SQLException e) {
             sneakyThrow(e);
             return null;
         }
     }
 
+    private PreparedStatement prepare(String query, Object... fields) {
+        if (pool == null) {
+            PreparedStatement statement = null;
+            try {
+                statement = statements.take(query);
+                return setFields(statement, fields);
+            } catch (SQLException e) {
+                if (statement == null) {
+                    sneakyThrow(e);
+                } else {
+                    discard(statement, e);
+                }
+                return null;
+            }
+        }
+        PooledConnection pooled = pool.borrowPooled();
+        PreparedStatement statement = null;
+        try {
+            statement = statements(pooled).take(query);
+            leased.put(statement, pooled);
+            return setFields(statement, fields);
+        } catch (SQLException e) {
+            if (statement == null) {
+                pool.release(pooled.getConnection());
+                sneakyThrow(e);
+            } else {
+                discard(statement, e);
+            }
+            return null;
+        }
+    }
+
+    private StatementCache statements(PooledConnection pooled) throws SQLException {
+        StatementCache cache = pooled.statements;
+        if (cache == null) {
+            cache = new StatementCache(pooled.getConnection(), statementCacheSize, statementCacheHits, statementCacheMisses);
+            pooled.statements = cache;
+        } else if (cache.getMaxSize() != statementCacheSize) {
+            cache.setMaxSize(statementCacheSize);
+        }
+        return cache;
+    }
+
+    /**
+     * Runs a statement on the wrapped connection, waiting for any batch running its own transaction on it to
+     * finish first. Pooled connections are only used by one thread at a time, so they don't need to wait.
+     */
+    private <T> T run(SQLAction<T> action) throws SQLException {
+        if (pool != null) {
+            return action.run();
+        }
+        Lock lock = connectionLock.readLock();
+        lock.lock();
+        try {
+            return action.run();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private interface SQLAction<T> {
+
+        T run() throws SQLException;
+
+    }
+
+    private static PreparedStatement setFields(PreparedStatement statement, Object... fields) throws SQLException {
+        int i = 1;
+        for (Object object : fields) {
+            statement.setObject(i, object);
+            i++;
+        }
+        return statement;
+    }
+
+    private void release(String query, PreparedStatement statement) {
+        PooledConnection pooled = pool == null ? null : leased.remove(statement);
+        try {
+            (pooled == null ? statements : pooled.statements).release(query, statement);
+        } catch (SQLException e) {
+            sneakyThrow(e);
+        } finally {
+            if (pooled != null) {
+                pool.release(pooled.getConnection());
+            }
+        }
+    }
+
+    /**
+     * Closes a statement taken from the statement cache after it failed, rather than returning it to the cache,
+     * returns its connection to the pool if it was borrowed, and rethrows the failure
+     */
+    private void discard(PreparedStatement statement, SQLException e) {
+        try {
+            statement.close();
+        } catch (SQLException ex) {
+            e.addSuppressed(ex);
+        }
+        PooledConnection pooled = pool == null ? null : leased.remove(statement);
+        if (pooled != null) {
+            pool.release(pooled.getConnection());
+        }
+        sneakyThrow(e);
+    }
+
+    /**
+     * Sets the maximum number of idle prepared statements to keep open for reuse. Statements used by the query
+     * methods of this SQLHelper are cached by their SQL, so repeating the same query does not prepare it again.
+     * Statements returned by {@link SQLHelper#prepareStatement(String, Object...)} are never cached. Pooled
+     * SQLHelpers cache up to this many statements for each connection in the pool.
+     *
+     * @param size The maximum number of statements to cache, or 0 to disable the cache
+     */
+    public void setStatementCacheSize(int size) {
+        statementCacheSize = size;
+        if (pool != null) {
+            return;
+        }
+        try {
+            statements.setMaxSize(size);
+        } catch (SQLException e) {
+            sneakyThrow(e);
+        }
+    }
+
+    /**
+     * @return The maximum number of idle prepared statements cached for each connection
+     */
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * @return The number of idle prepared statements currently cached, across the idle connections in the pool if
+     * this SQLHelper uses one
+     */
+    public int getCachedStatementCount() {
+        if (pool == null) {
+            return statements.size();
+        }
+        return pool.getIdle().stream().filter(c -> c.statements != null).mapToInt(c -> c.statements.size()).sum();
+    }
+
     /**
-     * Closes the underlying connection this SQLHelper wraps
+     * @return The number of queries which reused a cached prepared statement
+     */
+    public long getStatementCacheHits() {
+        return statementCacheHits.sum();
+    }
+
+    /**
+     * @return The number of queries which had to prepare a new statement
+     */
+    public long getStatementCacheMisses() {
+        return statementCacheMisses.sum();
+    }
+
+    /**
+     * Waits up to 10 seconds for queued async queries to run, then closes the cached prepared statements and the
+     * underlying connection this SQLHelper wraps. The pool a pooled SQLHelper borrows connections from is not
+     * closed, since it may be shared, and must be closed separately.
      */
     @Override
     public void close() {
+        ExecutorService executor;
+        synchronized (this) {
+            executor = asyncExecutor;
+        }
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(ASYNC_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (pool != null) {
+            return;
+        }
         try {
             setCommitInterval(-1);
+            statements.clear();
             connection.close();
             connection = null;
             System.gc();
@@ -509,11 +1238,16 @@ public class SQLHelper implements Closeable {
      */
     public static class Results implements AutoCloseable {
 
+        private SQLHelper helper;
+        private String query;
         private ResultSet results;
         private boolean empty;
         private PreparedStatement statement;
+        private boolean closed;
 
-        private Results(ResultSet results, PreparedStatement statement) {
+        private Results(SQLHelper helper, String query, ResultSet results, PreparedStatement statement) {
+            this.helper = helper;
+            this.query = query;
             this.results = results;
             this.statement = statement;
             try {
@@ -553,6 +1287,7 @@ public class SQLHelper implements Closeable {
          */
         public void forEach(Consumer<Results> lambda) {
             if (isEmpty()) {
+                close();
                 return;
             }
             lambda.accept(this);
@@ -642,15 +1377,25 @@ public class SQLHelper implements Closeable {
         }
 
         /**
-         * Closes the wrapped ResultSet. Call this when you are done using these Results.
+         * Closes the wrapped ResultSet and returns its statement to the statement cache. Call this when you are
+         * done using these Results.
          */
         @Override
         public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
             try {
                 results.close();
-                statement.close();
             } catch (SQLException e) {
-                sneakyThrow(e);
+                if (statement == null) {
+                    sneakyThrow(e);
+                }
+                helper.discard(statement, e);
+            }
+            if (statement != null) {
+                helper.release(query, statement);
             }
         }
 
@@ -0,0 +1,144 @@
+package redempt.redlib.sql;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A least-recently-used cache of idle PreparedStatements for a single Connection, keyed by their SQL. Statements
+ * are taken out of the cache while they are in use, so a statement is never shared between threads, and are
+ * closed when they are evicted or the cache is cleared.
+ *
+ * @author Redempt
+ */
+class StatementCache {
+
+    private Connection connection;
+    private int maxSize;
+    private LongAdder hits;
+    private LongAdder misses;
+    private Map<String, PreparedStatement> idle = new LinkedHashMap<>(16, 0.75f, true);
+
+    public StatementCache(Connection connection, int maxSize, LongAdder hits, LongAdder misses) {
+        this.connection = connection;
+        this.maxSize = maxSize;
+        this.hits = hits;
+        this.misses = misses;
+    }
+
+    /**
+     * Takes an idle statement for the given SQL out of the cache, or prepares a new one if there is none
+     *
+     * @param sql The SQL of the statement
+     * @return The statement
+     * @throws SQLException If the statement could not be prepared
+     */
+    public PreparedStatement take(String sql) throws SQLException {
+        PreparedStatement statement;
+        synchronized (this) {
+            statement = idle.remove(sql);
+        }
+        if (statement != null && !statement.isClosed()) {
+            hits.increment();
+            return statement;
+        }
+        misses.increment();
+        return connection.prepareStatement(sql);
+    }
+
+    /**
+     * Returns a statement to the cache once it is no longer in use, clearing its parameters. The statement is
+     * closed instead if the cache is disabled or already has an idle statement for the same SQL, and the least
+     * recently used statement is closed if the cache is full.
+     *
+     * @param sql       The SQL of the statement
+     * @param statement The statement
+     * @throws SQLException If the statement could not be cleared or closed
+     */
+    public void release(String sql, PreparedStatement statement) throws SQLException {
+        if (statement.isClosed()) {
+            return;
+        }
+        statement.clearParameters();
+        List<PreparedStatement> evicted = new ArrayList<>(1);
+        synchronized (this) {
+            if (maxSize <= 0 || idle.containsKey(sql)) {
+                evicted.add(statement);
+            } else {
+                idle.put(sql, statement);
+                trim(evicted);
+            }
+        }
+        close(evicted);
+    }
+
+    /**
+     * Sets the maximum number of idle statements to keep, closing the least recently used ones if there are
+     * more than that
+     *
+     * @param maxSize The maximum number of idle statements, or 0 to disable caching
+     * @throws SQLException If an evicted statement could not be closed
+     */
+    public void setMaxSize(int maxSize) throws SQLException {
+        List<PreparedStatement> evicted = new ArrayList<>();
+        synchronized (this) {
+            this.maxSize = maxSize;
+            trim(evicted);
+        }
+        close(evicted);
+    }
+
+    public synchronized int getMaxSize() {
+        return maxSize;
+    }
+
+    public synchronized int size() {
+        return idle.size();
+    }
+
+    /**
+     * Closes and removes all idle statements
+     *
+     * @throws SQLException If a statement could not be closed
+     */
+    public void clear() throws SQLException {
+        List<PreparedStatement> evicted;
+        synchronized (this) {
+            evicted = new ArrayList<>(idle.values());
+            idle.clear();
+        }
+        close(evicted);
+    }
+
+    private void trim(List<PreparedStatement> evicted) {
+        while (idle.size() > Math.max(maxSize, 0)) {
+            Map.Entry<String, PreparedStatement> eldest = idle.entrySet().iterator().next();
+            evicted.add(eldest.getValue());
+            idle.remove(eldest.getKey());
+        }
+    }
+
+    private static void close(List<PreparedStatement> statements) throws SQLException {
+        SQLException error = null;
+        for (PreparedStatement statement : statements) {
+            try {
+                statement.close();
+            } catch (SQLException e) {
+                if (error == null) {
+                    error = e;
+                } else {
+                    error.addSuppressed(e);
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+}
@@ -0,0 +1,158 @@
+package redempt.redlib.blockdata;
+
+import org.junit.jupiter.api.Test;
+import redempt.redlib.json.JSONList;
+import redempt.redlib.json.JSONMap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for encoding and decoding the data stored for a chunk
+ *
+ * @author Redempt
+ */
+public class ChunkDataCodecTest {
+
+    private ChunkPosition pos = new ChunkPosition(-3, 7, "world");
+
+    private DataBlock block(int x, int y, int z, Object... entries) {
+        JSONMap data = new JSONMap();
+        for (int i = 0; i < entries.length; i += 2) {
+            data.put((String) entries[i], entries[i + 1]);
+        }
+        return new DataBlock(data, new BlockPosition(x, y, z), "world", null);
+    }
+
+    private Map<BlockPosition, JSONMap> decode(byte[] data) {
+        Map<BlockPosition, JSONMap> blocks = new HashMap<>();
+        ChunkDataCodec.decode(pos, data, blocks::put);
+        return blocks;
+    }
+
+    private static byte[] concat(byte[]... frames) {
+        int length = Arrays.stream(frames).mapToInt(f -> f.length).sum();
+        byte[] data = new byte[length];
+        int offset = 0;
+        for (byte[] frame : frames) {
+            System.arraycopy(frame, 0, data, offset, frame.length);
+            offset += frame.length;
+        }
+        return data;
+    }
+
+    @Test
+    public void roundTripsEveryValueType() {
+        JSONList list = new JSONList();
+        list.add(1);
+        list.add("x");
+        JSONMap nested = new JSONMap();
+        nested.put("k", -5);
+        list.add(nested);
+        List<DataBlock> blocks = new ArrayList<>();
+        blocks.add(block(-48, -64, 112, "name", "generator", "energy", 1000, "ticks", 1L << 40, "rate", 0.5,
+                "on", true, "off", false, "list", list));
+        blocks.add(block(-33, 319, 127, "owner", "\u00fcn\u00efc\u00f6d\u00e9"));
+        Map<BlockPosition, JSONMap> decoded = decode(ChunkDataCodec.encode(blocks));
+        assertEquals(2, decoded.size());
+        for (DataBlock db : blocks) {
+            assertEquals(db.data, decoded.get(db.getBlockPosition()));
+        }
+    }
+
+    @Test
+    public void packedPositionsUnpackToTheSameBlock() {
+        for (int y : new int[] {-64, -1, 0, 255, 319}) {
+            BlockPosition bPos = new BlockPosition(-37, y, 125);
+            assertEquals(bPos, ChunkDataCodec.unpack(pos, ChunkDataCodec.pack(bPos.getX(), bPos.getY(), bPos.getZ())));
+        }
+    }
+
+    @Test
+    public void deltasApplyOnTopOfTheFullFrame() {
+        DataBlock kept = block(-48, 10, 112, "a", 1);
+        DataBlock changed = block(-47, 10, 112, "a", 2);
+        DataBlock removed = block(-46, 10, 112, "a", 3);
+        byte[] full = ChunkDataCodec.encode(Arrays.asList(kept, changed, removed));
+        DataBlock update = block(-47, 10, 112, "a", 20);
+        DataBlock added = block(-45, 10, 112, "a", 4);
+        BlockPosition gone = removed.getBlockPosition();
+        byte[] delta = ChunkDataCodec.encodeDelta(Arrays.asList(update, added),
+                new int[] {ChunkDataCodec.pack(gone.getX(), gone.getY(), gone.getZ())});
+        byte[] second = ChunkDataCodec.encodeDelta(Collections.singletonList(block(-45, 10, 112, "a", 40)), new int[0]);
+
+        Map<BlockPosition, JSONMap> blocks = new HashMap<>();
+        int deltas = ChunkDataCodec.decode(pos, concat(full, delta, second), blocks::put);
+        assertEquals(2, deltas);
+        assertEquals(3, blocks.size());
+        assertEquals(1, ((Number) blocks.get(kept.getBlockPosition()).get("a")).intValue());
+        assertEquals(20, ((Number) blocks.get(update.getBlockPosition()).get("a")).intValue());
+        assertEquals(40, ((Number) blocks.get(added.getBlockPosition()).get("a")).intValue());
+        assertFalse(blocks.containsKey(gone));
+    }
+
+    @Test
+    public void fullFrameResetsEarlierDeltas() {
+        byte[] first = ChunkDataCodec.encode(Collections.singletonList(block(-48, 0, 112, "a", 1)));
+        byte[] delta = ChunkDataCodec.encodeDelta(Collections.singletonList(block(-47, 0, 112, "a", 2)), new int[0]);
+        byte[] rewrite = ChunkDataCodec.encode(Collections.singletonList(block(-46, 0, 112, "a", 3)));
+        Map<BlockPosition, JSONMap> blocks = new HashMap<>();
+        assertEquals(0, ChunkDataCodec.decode(pos, concat(first, delta, rewrite), blocks::put));
+        assertEquals(Collections.singleton(new BlockPosition(-46, 0, 112)), blocks.keySet());
+    }
+
+    @Test
+    public void compressedAndPlainFramesMix() {
+        List<DataBlock> blocks = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            blocks.add(block(-48 + (i & 15), i, 112, "custom-type", "generator", "owner", "someone", "level", i));
+        }
+        byte[] full = ChunkDataCodec.encode(blocks);
+        byte[] compressed = ChunkDataCodec.compress(full, 0);
+        assertTrue(compressed.length < full.length);
+        assertEquals(ChunkDataCodec.COMPRESSED, compressed[0]);
+        assertSame(full, ChunkDataCodec.compress(full, -1));
+        assertSame(full, ChunkDataCodec.compress(full, full.length + 1));
+
+        byte[] delta = ChunkDataCodec.encodeDelta(Collections.singletonList(block(-48, 0, 112, "level", 99)), new int[0]);
+        Map<BlockPosition, JSONMap> decoded = decode(concat(compressed, delta));
+        assertEquals(64, decoded.size());
+        assertEquals(99, ((Number) decoded.get(new BlockPosition(-48, 0, 112)).get("level")).intValue());
+        assertEquals(decode(full).get(new BlockPosition(-47, 1, 112)), decoded.get(new BlockPosition(-47, 1, 112)));
+    }
+
+    @Test
+    public void legacyJSONIsDecodedAndMarkedForRewrite() {
+        DataBlock db = block(-48, 70, 112, "owner", "someone", "energy", 5);
+        JSONMap legacy = new JSONMap();
+        legacy.put(db.getBlockPosition().toString(), db.data);
+        byte[] json = (legacy.toString() + "\n").getBytes(StandardCharsets.UTF_8);
+
+        Map<BlockPosition, JSONMap> blocks = new HashMap<>();
+        assertEquals(-1, ChunkDataCodec.decode(pos, json, blocks::put));
+        assertEquals(decode(ChunkDataCodec.encode(Collections.singletonList(db))), blocks);
+    }
+
+    @Test
+    public void framesAfterLegacyJSONAreRejected() {
+        JSONMap legacy = new JSONMap();
+        legacy.put(new BlockPosition(-48, 70, 112).toString(), new JSONMap());
+        byte[] json = legacy.toString().getBytes(StandardCharsets.UTF_8);
+        byte[] delta = ChunkDataCodec.encodeDelta(Collections.singletonList(block(-48, 70, 112, "a", 1)), new int[0]);
+        assertThrows(IllegalArgumentException.class, () -> decode(concat(json, delta)));
+    }
+
+    @Test
+    public void emptyDataHasNoBlocks() {
+        assertEquals(0, ChunkDataCodec.decode(pos, new byte[0], (b, m) -> fail("no blocks expected")));
+        assertTrue(decode(ChunkDataCodec.encode(Collections.emptyList())).isEmpty());
+    }
+
+}
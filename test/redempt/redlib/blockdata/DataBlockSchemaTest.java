@@ -0,0 +1,143 @@
+package redempt.redlib.blockdata;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import redempt.redlib.blockdata.DataBlockSchema.BooleanField;
+import redempt.redlib.blockdata.DataBlockSchema.DoubleField;
+import redempt.redlib.blockdata.DataBlockSchema.IntField;
+import redempt.redlib.blockdata.DataBlockSchema.LongField;
+import redempt.redlib.blockdata.DataBlockSchema.StringField;
+import redempt.redlib.json.JSONMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for reading and writing DataBlocks through schema fields
+ *
+ * @author Redempt
+ */
+public class DataBlockSchemaTest {
+
+    private DataBlockSchema schema;
+    private IntField energy;
+    private LongField ticks;
+    private DoubleField heat;
+    private BooleanField on;
+    private StringField owner;
+
+    @BeforeEach
+    public void setup() {
+        schema = new DataBlockSchema("generator");
+        energy = schema.addInt("energy");
+        ticks = schema.addLong("ticks");
+        heat = schema.addDouble("heat");
+        on = schema.addBoolean("on");
+        owner = schema.addString("owner");
+        schema.freeze();
+    }
+
+    private DataBlock block(JSONMap data) {
+        DataBlock db = new DataBlock(data, new BlockPosition(0, 64, 0), "world", null);
+        db.applySchema(schema);
+        return db;
+    }
+
+    @Test
+    public void fieldsReadValuesTheSchemaWasAppliedTo() {
+        JSONMap data = new JSONMap();
+        data.put("energy", 5);
+        data.put("ticks", 1L << 40);
+        data.put("owner", "someone");
+        data.put("extra", "kept");
+        DataBlock db = block(data);
+        assertEquals(5, energy.get(db));
+        assertEquals(1L << 40, ticks.get(db));
+        assertEquals("someone", owner.get(db));
+        assertFalse(heat.isSet(db));
+        assertFalse(on.get(db));
+        assertEquals("kept", db.getString("extra"));
+    }
+
+    @Test
+    public void setValuesAreVisibleByKey() {
+        DataBlock db = block(new JSONMap());
+        energy.set(db, 7);
+        ticks.set(db, -3L);
+        heat.set(db, 2.5);
+        on.set(db, true);
+        owner.set(db, "someone");
+        assertEquals(7, (int) db.getInt("energy"));
+        assertEquals(-3L, (long) db.getLong("ticks"));
+        assertEquals(2.5, (double) db.getDouble("heat"));
+        assertTrue(db.getBoolean("on"));
+        assertEquals("someone", db.getString("owner"));
+        db.set("energy", 8L);
+        assertEquals(8, energy.get(db));
+    }
+
+    @Test
+    public void unsetAndClearedFieldsReadAsEmpty() {
+        DataBlock db = block(new JSONMap());
+        energy.set(db, 7);
+        heat.set(db, 2.5);
+        on.set(db, true);
+        owner.set(db, "someone");
+        energy.unset(db);
+        assertFalse(energy.isSet(db));
+        assertEquals(0, energy.get(db));
+        assertNull(db.getObject("energy"));
+
+        db.clear();
+        assertEquals(0, heat.get(db));
+        assertFalse(on.get(db));
+        assertNull(owner.get(db));
+        assertFalse(db.contains("heat"));
+    }
+
+    @Test
+    public void valuesWhichDoNotFitAreRejected() {
+        DataBlock db = block(new JSONMap());
+        energy.set(db, 1);
+        assertThrows(IllegalArgumentException.class, () -> db.set("energy", 2.5));
+        assertThrows(IllegalArgumentException.class, () -> db.set("energy", 1L << 40));
+        assertThrows(IllegalArgumentException.class, () -> db.set("energy", "lots"));
+        assertThrows(IllegalArgumentException.class, () -> db.set("ticks", 1.5));
+        assertThrows(IllegalArgumentException.class, () -> db.set("on", 1));
+        assertEquals(1, energy.get(db));
+    }
+
+    @Test
+    public void storedValuesWhichDoNotFitAreKeptByKey() {
+        JSONMap data = new JSONMap();
+        data.put("energy", "lots");
+        data.put("heat", 1);
+        DataBlock db = block(data);
+        assertFalse(energy.isSet(db));
+        assertEquals("lots", db.getObject("energy"));
+        assertEquals(1, heat.get(db));
+
+        energy.set(db, 3);
+        assertEquals(3, db.getObject("energy"));
+        assertFalse(db.data.containsKey("energy"));
+    }
+
+    @Test
+    public void fieldsWorkOnBlocksWithoutTheSchema() {
+        DataBlock db = new DataBlock(new JSONMap(), new BlockPosition(0, 64, 0), "world", null);
+        energy.set(db, 4);
+        owner.set(db, "someone");
+        assertEquals(4, energy.get(db));
+        assertTrue(owner.isSet(db));
+        owner.unset(db);
+        assertNull(owner.get(db));
+    }
+
+    @Test
+    public void fieldsCannotBeAddedOnceFrozen() {
+        assertThrows(IllegalStateException.class, () -> schema.addInt("late"));
+        DataBlockSchema other = new DataBlockSchema("other");
+        other.addInt("a");
+        assertThrows(IllegalArgumentException.class, () -> other.addLong("a"));
+    }
+
+}
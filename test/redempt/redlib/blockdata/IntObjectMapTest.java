@@ -0,0 +1,102 @@
+package redempt.redlib.blockdata;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the int-keyed hash map used to store the DataBlocks in a chunk
+ *
+ * @author Redempt
+ */
+public class IntObjectMapTest {
+
+    /**
+     * Finds keys whose home is the given slot in a map of the minimum capacity, so that they are stored in one
+     * probe chain. This mirrors the hash used by IntObjectMap.
+     */
+    private static List<Integer> colliding(int slot, int count) {
+        List<Integer> keys = new ArrayList<>();
+        for (int key = 0; keys.size() < count; key++) {
+            int h = key * 0x9E3779B9;
+            if (((h ^ (h >>> 16)) & 7) == slot) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    @Test
+    public void putGetAndReplace() {
+        IntObjectMap<String> map = new IntObjectMap<>();
+        assertNull(map.put(5, "a"));
+        assertEquals("a", map.put(5, "b"));
+        assertEquals("b", map.get(5));
+        assertNull(map.get(6));
+        assertEquals(1, map.size());
+        assertThrows(NullPointerException.class, () -> map.put(1, null));
+    }
+
+    @Test
+    public void removeKeepsTheRestOfAProbeChainReachable() {
+        List<Integer> keys = colliding(3, 4);
+        IntObjectMap<Integer> map = new IntObjectMap<>();
+        keys.forEach(k -> map.put(k, k));
+        // Removing from the start and middle of the chain shifts the later entries back into the gap
+        assertEquals(keys.get(0), map.remove(keys.get(0)));
+        assertEquals(keys.get(2), map.remove(keys.get(2)));
+        assertNull(map.get(keys.get(0)));
+        assertNull(map.get(keys.get(2)));
+        assertEquals(keys.get(1), map.get(keys.get(1)));
+        assertEquals(keys.get(3), map.get(keys.get(3)));
+        assertEquals(2, map.size());
+        assertNull(map.remove(keys.get(0)));
+    }
+
+    @Test
+    public void removeShiftsEntriesWhichWrapAroundTheTable() {
+        // Keys whose home is the last slot wrap around to the start of the table
+        List<Integer> keys = colliding(7, 3);
+        IntObjectMap<Integer> map = new IntObjectMap<>();
+        keys.forEach(k -> map.put(k, k));
+        map.remove(keys.get(0));
+        assertEquals(keys.get(1), map.get(keys.get(1)));
+        assertEquals(keys.get(2), map.get(keys.get(2)));
+        map.remove(keys.get(1));
+        assertEquals(keys.get(2), map.get(keys.get(2)));
+    }
+
+    @Test
+    public void behavesLikeAHashMap() {
+        Random random = new Random(1);
+        IntObjectMap<Integer> map = new IntObjectMap<>();
+        Map<Integer, Integer> reference = new HashMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            int key = random.nextInt(2000) - 1000;
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(reference.put(key, i), map.put(key, i));
+                    break;
+                case 1:
+                    assertEquals(reference.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(reference.get(key), map.get(key));
+            }
+            assertEquals(reference.size(), map.size());
+        }
+        List<Integer> values = new ArrayList<>();
+        map.forEach(values::add);
+        values.sort(null);
+        List<Integer> expected = new ArrayList<>(reference.values());
+        expected.sort(null);
+        assertEquals(expected, values);
+    }
+
+}
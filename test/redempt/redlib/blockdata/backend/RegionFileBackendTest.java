@@ -0,0 +1,146 @@
+package redempt.redlib.blockdata.backend;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import redempt.redlib.blockdata.ChunkPosition;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for how RegionFileBackend allocates sectors in its region files
+ *
+ * @author Redempt
+ */
+public class RegionFileBackendTest {
+
+    private static final int SECTOR = 4096;
+    // The header holds an 8-byte entry for each of the 1024 chunks in a region
+    private static final int HEADER = 2 * SECTOR;
+
+    @TempDir
+    Path dir;
+
+    private ChunkPosition a = new ChunkPosition(0, 0, "world");
+    private ChunkPosition b = new ChunkPosition(1, 0, "world");
+    private ChunkPosition c = new ChunkPosition(2, 0, "world");
+
+    private static byte[] filled(int length, int value) {
+        byte[] data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] combined = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, combined, first.length, second.length);
+        return combined;
+    }
+
+    private long size() throws IOException {
+        return Files.size(dir.resolve("world").resolve("r.0.0.rdb"));
+    }
+
+    @Test
+    public void chunksAreWrittenToTheFirstFreeSectors() throws IOException {
+        RegionFileBackend backend = new RegionFileBackend(dir);
+        backend.save(a, filled(100, 1)).join();
+        assertEquals(HEADER + 100, size());
+        backend.save(b, filled(100, 2)).join();
+        assertEquals(HEADER + SECTOR + 100, size());
+
+        // A no longer fits in its sector, so it moves to the end of the file and frees it
+        backend.save(a, filled(5000, 3)).join();
+        assertEquals(HEADER + 2 * SECTOR + 5000, size());
+        backend.save(c, filled(100, 4)).join();
+        assertEquals(HEADER + 2 * SECTOR + 5000, size());
+
+        assertArrayEquals(filled(5000, 3), backend.load(a).join());
+        assertArrayEquals(filled(100, 2), backend.load(b).join());
+        assertArrayEquals(filled(100, 4), backend.load(c).join());
+        backend.close().join();
+    }
+
+    @Test
+    public void shrinkingAChunkFreesItsTrailingSectors() throws IOException {
+        RegionFileBackend backend = new RegionFileBackend(dir);
+        backend.save(a, filled(3 * SECTOR, 1)).join();
+        backend.save(a, filled(100, 2)).join();
+        backend.save(b, filled(100, 3)).join();
+        // B fits in the sectors A stopped using
+        assertEquals(HEADER + 3 * SECTOR, size());
+        assertArrayEquals(filled(100, 2), backend.load(a).join());
+        assertArrayEquals(filled(100, 3), backend.load(b).join());
+        backend.close().join();
+    }
+
+    @Test
+    public void deltasAreAppendedInPlaceWhenThereIsRoom() throws IOException {
+        RegionFileBackend backend = new RegionFileBackend(dir);
+        byte[] data = filled(100, 1);
+        backend.save(b, data).join();
+        backend.save(a, filled(100, 2)).join();
+
+        byte[] delta = filled(100, 3);
+        backend.appendDeltas(Collections.singletonMap(b, delta)).join();
+        data = concat(data, delta);
+        assertArrayEquals(data, backend.load(b).join());
+        assertEquals(HEADER + SECTOR + 100, size());
+
+        // B is followed by A, so it has to be moved to grow past its sector
+        delta = filled(5000, 4);
+        backend.appendDeltas(Collections.singletonMap(b, delta)).join();
+        data = concat(data, delta);
+        assertArrayEquals(data, backend.load(b).join());
+        assertEquals(HEADER + 2 * SECTOR + data.length, size());
+
+        // B is now at the end of the file, so it grows into the sectors after it
+        delta = filled(SECTOR, 5);
+        backend.appendDeltas(Collections.singletonMap(b, delta)).join();
+        data = concat(data, delta);
+        assertArrayEquals(data, backend.load(b).join());
+        assertEquals(HEADER + 2 * SECTOR + data.length, size());
+        assertArrayEquals(filled(100, 2), backend.load(a).join());
+
+        // Appending to a chunk with no data stores the delta as its data
+        backend.appendDeltas(Collections.singletonMap(c, filled(10, 6))).join();
+        assertArrayEquals(filled(10, 6), backend.load(c).join());
+        backend.close().join();
+    }
+
+    @Test
+    public void removedAreasAreGoneAfterReopening() {
+        RegionFileBackend backend = new RegionFileBackend(dir);
+        ChunkPosition other = new ChunkPosition(40, 0, "world");
+        backend.save(a, filled(100, 1)).join();
+        backend.save(b, filled(100, 2)).join();
+        backend.save(c, filled(100, 3)).join();
+        backend.save(other, filled(100, 4)).join();
+        backend.removeArea("world", 0, 0, 1, 0).join();
+        assertNull(backend.load(a).join());
+        assertNull(backend.load(b).join());
+        backend.close().join();
+
+        backend = new RegionFileBackend(dir);
+        assertNull(backend.load(a).join());
+        assertNull(backend.load(b).join());
+        assertArrayEquals(filled(100, 3), backend.load(c).join());
+        assertArrayEquals(filled(100, 4), backend.load(other).join());
+        // The removed chunks' sectors are free again after reopening
+        backend.save(a, filled(100, 5)).join();
+        assertArrayEquals(filled(100, 5), backend.load(a).join());
+        backend.remove(c).join();
+        backend.close().join();
+
+        backend = new RegionFileBackend(dir);
+        assertNull(backend.load(c).join());
+        assertEquals(2, backend.loadAll().join().size());
+        backend.close().join();
+    }
+
+}
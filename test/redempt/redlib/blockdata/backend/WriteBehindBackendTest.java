@@ -0,0 +1,187 @@
+package redempt.redlib.blockdata.backend;
+
+import org.junit.jupiter.api.Test;
+import redempt.redlib.blockdata.BlockDataManager;
+import redempt.redlib.blockdata.ChunkPosition;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for how WriteBehindBackend merges queued writes to the same chunk
+ *
+ * @author Redempt
+ */
+public class WriteBehindBackendTest {
+
+    private ChunkPosition pos = new ChunkPosition(1, 2, "world");
+
+    private static byte[] bytes(int... values) {
+        byte[] data = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            data[i] = (byte) values[i];
+        }
+        return data;
+    }
+
+    @Test
+    public void laterSaveReplacesQueuedWrites() {
+        MemoryBackend memory = new MemoryBackend();
+        WriteBehindBackend backend = new WriteBehindBackend(memory, 16, 64);
+        backend.save(pos, bytes(1)).join();
+        backend.appendDeltas(Collections.singletonMap(pos, bytes(2))).join();
+        backend.save(pos, bytes(3)).join();
+        assertArrayEquals(bytes(3), backend.load(pos).join());
+        backend.flush().join();
+        assertArrayEquals(bytes(3), memory.stored.get(pos));
+        assertEquals(1, memory.writes.size());
+    }
+
+    @Test
+    public void deltasAreAppendedToAQueuedSave() {
+        MemoryBackend memory = new MemoryBackend();
+        WriteBehindBackend backend = new WriteBehindBackend(memory, 16, 64);
+        backend.save(pos, bytes(1, 2)).join();
+        backend.appendDeltas(Collections.singletonMap(pos, bytes(3))).join();
+        backend.appendDeltas(Collections.singletonMap(pos, bytes(4))).join();
+        assertArrayEquals(bytes(1, 2, 3, 4), backend.load(pos).join());
+        backend.flush().join();
+        // The deltas were merged into the full save, so nothing is appended separately
+        assertArrayEquals(bytes(1, 2, 3, 4), memory.stored.get(pos));
+        assertTrue(memory.deltas.isEmpty());
+    }
+
+    @Test
+    public void queuedDeltasAreMergedAndAppliedOnTopOfStoredData() {
+        MemoryBackend memory = new MemoryBackend();
+        memory.stored.put(pos, bytes(1));
+        WriteBehindBackend backend = new WriteBehindBackend(memory, 16, 64);
+        backend.appendDeltas(Collections.singletonMap(pos, bytes(2))).join();
+        backend.appendDeltas(Collections.singletonMap(pos, bytes(3))).join();
+        assertArrayEquals(bytes(1, 2, 3), backend.load(pos).join());
+        backend.flush().join();
+        assertEquals(1, memory.deltas.size());
+        assertArrayEquals(bytes(1, 2, 3), memory.stored.get(pos));
+    }
+
+    @Test
+    public void deltasAfterARemovalBecomeTheWholeChunk() {
+        MemoryBackend memory = new MemoryBackend();
+        memory.stored.put(pos, bytes(1));
+        WriteBehindBackend backend = new WriteBehindBackend(memory, 16, 64);
+        backend.remove(pos).join();
+        assertNull(backend.load(pos).join());
+        backend.appendDeltas(Collections.singletonMap(pos, bytes(2))).join();
+        assertArrayEquals(bytes(2), backend.load(pos).join());
+        backend.flush().join();
+        assertArrayEquals(bytes(2), memory.stored.get(pos));
+    }
+
+    @Test
+    public void failedBatchesStayQueued() {
+        MemoryBackend memory = new MemoryBackend();
+        memory.failing = true;
+        WriteBehindBackend backend = new WriteBehindBackend(memory, 4, 8);
+        backend.save(pos, bytes(1));
+        assertThrows(Exception.class, () -> backend.flush().join());
+        assertEquals(1, backend.getFailures());
+        assertArrayEquals(bytes(1), backend.load(pos).join());
+        memory.failing = false;
+        backend.flush().join();
+        assertEquals(0, backend.getFailures());
+        assertEquals(0, backend.getQueueSize());
+        assertArrayEquals(bytes(1), memory.stored.get(pos));
+    }
+
+    /**
+     * A backend which stores chunks in memory and records the batches written to it
+     */
+    private static class MemoryBackend implements BlockDataBackend {
+
+        private Map<ChunkPosition, byte[]> stored = new ConcurrentHashMap<>();
+        private List<Map<ChunkPosition, byte[]>> writes = Collections.synchronizedList(new ArrayList<>());
+        private List<Map<ChunkPosition, byte[]>> deltas = Collections.synchronizedList(new ArrayList<>());
+        private volatile boolean failing;
+
+        @Override
+        public CompletableFuture<byte[]> load(ChunkPosition pos) {
+            return CompletableFuture.completedFuture(stored.get(pos));
+        }
+
+        @Override
+        public CompletableFuture<Void> save(ChunkPosition pos, byte[] data) {
+            return saveBatch(Collections.singletonMap(pos, data));
+        }
+
+        @Override
+        public CompletableFuture<Void> saveBatch(Map<ChunkPosition, byte[]> batch) {
+            CompletableFuture<Void> future = new CompletableFuture<>();
+            if (failing) {
+                future.completeExceptionally(new IllegalStateException("Backend is failing"));
+                return future;
+            }
+            writes.add(new HashMap<>(batch));
+            batch.forEach((pos, data) -> {
+                if (data == null) {
+                    stored.remove(pos);
+                } else {
+                    stored.put(pos, data);
+                }
+            });
+            future.complete(null);
+            return future;
+        }
+
+        @Override
+        public boolean supportsDeltas() {
+            return true;
+        }
+
+        @Override
+        public CompletableFuture<Void> appendDeltas(Map<ChunkPosition, byte[]> deltas) {
+            this.deltas.add(new HashMap<>(deltas));
+            deltas.forEach((pos, data) -> stored.merge(pos, data, (a, b) -> {
+                byte[] combined = new byte[a.length + b.length];
+                System.arraycopy(a, 0, combined, 0, a.length);
+                System.arraycopy(b, 0, combined, a.length, b.length);
+                return combined;
+            }));
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> remove(ChunkPosition pos) {
+            stored.remove(pos);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> saveAll() {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Void> close() {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        @Override
+        public CompletableFuture<Map<ChunkPosition, byte[]>> loadAll() {
+            return CompletableFuture.completedFuture(new HashMap<>(stored));
+        }
+
+        @Override
+        public boolean attemptMigration(BlockDataManager manager) {
+            return false;
+        }
+
+    }
+
+}